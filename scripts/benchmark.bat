@@ -0,0 +1,5 @@
+rmdir /q /s ..\out-test
+mkdir ..\out-test
+cd ..
+javac --release 17 -d out-test src/client/*.java src/server/*.java src/common/*.java test/common/*.java test/server/*.java
+java -cp out-test server.EngineBenchmark %*
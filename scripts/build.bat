@@ -1,9 +1,9 @@
 rmdir /q /s ..\out
 mkdir ..\out
 cd ..\src
-javac client/*.java -d ../out
-javac server/*.java -d ../out
-javac common/*.java -d ../out
+javac --release 17 client/*.java -d ../out
+javac --release 17 server/*.java -d ../out
+javac --release 17 common/*.java -d ../out
 cd ..\out
 rmdir /q /s ..\artifacts
 mkdir ..\artifacts
@@ -0,0 +1,14 @@
+rmdir /q /s ..\out-test
+mkdir ..\out-test
+cd ..
+javac --release 17 -d out-test src/client/*.java src/server/*.java src/common/*.java test/common/*.java test/server/*.java
+java -cp out-test common.FrameDecoderTest
+java -cp out-test server.CommandTableTest
+java -cp out-test server.HashedTimerWheelTest
+java -cp out-test server.HistoryBufferTest
+java -cp out-test server.PostingListTest
+java -cp out-test common.TokenBucketTest
+java -cp out-test common.FileCacheTest
+java -cp out-test server.HistoryLogTest
+java -cp out-test server.FileRegistryTest
+java -cp out-test server.EngineTest
@@ -1,11 +1,15 @@
 package client;
 
+import common.BufferPool;
+import common.ChunkCompressor;
 import common.FileUploadTask;
+import common.Frame;
+import common.TransferScheduler;
+import common.TransferStream;
 import server.Server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -23,11 +27,24 @@ public class Client {
      */
     private static final String[] RESTRICTED = new String[]{" ", "\"", ";", "'", "/"};
 
-    private static final int BUFFER_SIZE = 1024;
+    /**
+     * false to send and accept file data only raw
+     */
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("client.compression", "true"));
+
     private final InetSocketAddress remote = new InetSocketAddress(Server.PORT);
 
     private final SocketChannel channel;
+    /**
+     * file transfers sharing the channel with chat
+     */
+    private final TransferStreams streams;
     private String name;
+    /**
+     * uploads sent at the same time, the rest wait
+     */
+    private final TransferScheduler uploads = new TransferScheduler("client-upload",
+            Integer.getInteger("client.uploads.max", 2), Long.getLong("client.uploads.rate", 0), 0);
 
     public static void main(String[] args) throws IOException {
         new Client().run();
@@ -37,6 +54,7 @@ public class Client {
         InetSocketAddress remote = this.remote;
         channel = SocketChannel.open(remote);
         channel.configureBlocking(false);
+        streams = new TransferStreams(channel);
     }
 
     /**
@@ -53,7 +71,7 @@ public class Client {
             name = scanner.nextLine();
         }
         login();
-        SocketChannelWatcher socketChannelWatcher = new SocketChannelWatcher(channel);
+        SocketChannelWatcher socketChannelWatcher = new SocketChannelWatcher(channel, streams);
         socketChannelWatcher.watchAsync();
         while (true) {
             String message = scanner.nextLine();
@@ -75,24 +93,32 @@ public class Client {
     private void printHelp() {
         System.out.println("Enter a command or message. Command list:");
         System.out.println("/file - upload file");
-        System.out.println("/download {file id} - downloads file by id");
+        System.out.println("/download {file id} [offset] - downloads file by id, from offset to continue a broken download");
         System.out.println("/history - prints message history");
         System.out.println("/online - prints users online");
+        System.out.println("/msg {user} {text} - sends private message");
+        System.out.println("/join {room} - moves to room, creating it if needed");
+        System.out.println("/leave - returns to room general");
+        System.out.println("/rooms - prints rooms and their sizes");
+        System.out.println("/search [before {id}] {words} - finds messages of the room containing all words");
+        System.out.println("/transfers - prints downloads served by the server");
     }
 
     /**
-     * requests file download from server
+     * requests file download from server, the file comes as a stream on the chat connection
      *
-     * @param message with /file command
-     * @throws IOException when server is unavailable
+     * @param message with /download command
      */
-    private void requestFile(String message) throws IOException {
-        SocketChannel fileSocket = SocketChannel.open(remote);
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        buffer.put(message.getBytes());
-        buffer.flip();
-        fileSocket.write(buffer);
-        new FileDownloader(fileSocket).start();
+    private void requestFile(String message) {
+        String[] args = message.trim().split("\\s+");
+        if (args.length < 2) {
+            // the server answers with the format error
+            sendMessage(message);
+            return;
+        }
+        int stream = streams.openDownload(args[1]);
+        sendMessage(String.format("%s%s %s%d", message.trim(), COMPRESSION ? " " + ChunkCompressor.TOKEN : "",
+                TransferStream.TOKEN_PREFIX, stream));
     }
 
     /**
@@ -129,20 +155,19 @@ public class Client {
         } while (!enteredFileIndexExists);
 
         Path selectedFilePath = files.get(selectedFileIndex);
-        SocketChannel fileSocket = SocketChannel.open(remote);
-        new Thread(new FileUploadTask(fileSocket, selectedFilePath, name)).start();
-        System.out.println("upload started: " + selectedFilePath.toAbsolutePath());
+        TransferStream stream = streams.openUpload();
+        uploads.submit(FileUploadTask.upload(streams, stream, selectedFilePath, name, COMPRESSION),
+                position -> System.out.println("upload queued, position " + position),
+                () -> streams.closeUpload(stream));
+        System.out.println("upload scheduled: " + selectedFilePath.toAbsolutePath());
     }
 
     /**
      * @param message to be sent to server
      */
     private void sendMessage(String message) {
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        buffer.put(message.getBytes());
-        buffer.flip();
         try {
-            channel.write(buffer);
+            streams.send(Frame.encodeText(message, BufferPool.SHARED));
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("error sending message");
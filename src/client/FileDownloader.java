@@ -5,81 +5,80 @@ import server.FileSaver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.Paths;
 
-import static common.FileUploadTask.BUFFER_SIZE;
-
-public class FileDownloader implements Runnable {
-    private final SocketChannel channel;
+/**
+ * Saves one file the server sends as a stream on the chat connection, fed by {@link TransferStreams}
+ */
+public class FileDownloader {
     private FileSaver fileSaver = null;
-    private final Selector selector;
+    /**
+     * id of the downloaded file, to print the command continuing a broken download
+     */
+    private final String fileId;
+    /**
+     * file size told by the server, -1 if unknown
+     */
+    private long size = -1;
 
-    public FileDownloader(SocketChannel channel) throws IOException {
-        this.channel = channel;
-        channel.configureBlocking(false);
-        selector = Selector.open();
-        channel.register(selector, SelectionKey.OP_READ);
+    FileDownloader(String fileId) {
+        this.fileId = fileId;
     }
 
-    public void start() {
-        new Thread(this).start();
+    /**
+     * opens the destination file
+     *
+     * @param fileMessage meta sent by the server
+     * @throws IOException if the file is not writable or shorter than the offset
+     */
+    void start(FileMessage fileMessage) throws IOException {
+        System.out.println("File is being saved");
+        size = fileMessage.getSize();
+        fileSaver = new FileSaver(Paths.get(fileMessage.getCleanFileName()), fileMessage.getOffset());
+        if (fileMessage.isCompressed()) {
+            fileSaver.setCompressed();
+        }
+        Path path = fileSaver.getPath();
+        System.out.println("File will be saved: " + path.toAbsolutePath());
     }
 
-    @Override
-    public void run() {
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        while (true) {
-            try {
-                int numReadBytes = channel.read(buffer);
-                boolean noMessage = numReadBytes == 0;
-                if (noMessage) {
-                    continue;
-                }
-                if (numReadBytes == -1) {
-                    closeFileChannel(channel);
-                    break;
-                }
-                if (fileSaver != null) {
-                    fileSaver.save(buffer);
-                } else {
-                    String message = new String(buffer.array(), StandardCharsets.UTF_8);
-                    if (message.startsWith("/file")) {
-                        System.out.println("File is being saved");
-                        FileMessage fileMessage = FileMessage.parse(message);
-                        fileSaver = new FileSaver(fileMessage.getCleanFileName());
-                        Path path = fileSaver.getPath();
-                        if (buffer.position() > fileMessage.getMetaInfoLength()) {
-                            ByteBuffer fileDataBuffer = ByteBuffer.allocate(buffer.position() - fileMessage.getMetaInfoLength());
-                            int offset = fileMessage.getMetaInfoLength();
-                            for (int i = offset; i < buffer.position(); i++) {
-                                fileDataBuffer.array()[i - offset] = buffer.get(i);
-                            }
-                            fileSaver.save(fileDataBuffer);
-                        }
-                        System.out.println("File will be saved: " + path.toAbsolutePath());
-                    } else {
-                        System.out.println(message);
-                    }
-                }
-                Arrays.fill(buffer.array(), (byte) 0);
-                buffer.clear();
+    /**
+     * @param data checked chunk of the file
+     * @throws IOException if the chunk is malformed or cannot be written
+     */
+    void save(ByteBuffer data) throws IOException {
+        if (fileSaver != null) {
+            fileSaver.save(data);
+        }
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
+    /**
+     * closes the file after the server ended the stream
+     */
+    void finish() {
+        if (fileSaver != null) {
+            fileSaver.finish();
+            if (size >= 0 && fileSaver.getWritten() < size) {
+                printResumeHint();
+            } else {
+                System.out.println("File download complete");
             }
+        }
+    }
 
+    /**
+     * closes the file after a failed download, keeping the received part
+     */
+    void abort() {
+        if (fileSaver != null) {
+            fileSaver.finish();
+            printResumeHint();
         }
     }
 
-    private void closeFileChannel(SocketChannel channel) throws IOException {
-        fileSaver.finish();
-        System.out.println("File download complete");
-        channel.close();
+    private void printResumeHint() {
+        System.out.println(String.format("Download broken at %d of %d bytes, continue with /download %s %d",
+                fileSaver.getWritten(), size, fileId, fileSaver.getWritten()));
     }
 }
@@ -1,28 +1,31 @@
 package client;
 
+import common.BufferPool;
+import common.Frame;
+import common.FrameDecoder;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
 /**
- * Prints messages from server
+ * Prints messages from server, frames of file transfers go to {@link TransferStreams}
  */
 public class SocketChannelWatcher {
-    private static final int BUFFER_SIZE = 1024;
-
     private Selector selector;
+    private final TransferStreams streams;
 
     /**
      *
      * @param channel opened SocketChannel to server
+     * @param streams transfers multiplexed on the channel
      */
-    SocketChannelWatcher(SocketChannel channel) throws IOException {
+    SocketChannelWatcher(SocketChannel channel, TransferStreams streams) throws IOException {
+        this.streams = streams;
         selector = Selector.open();
         channel.configureBlocking(false);
         channel.register(selector, SelectionKey.OP_READ);
@@ -40,7 +43,7 @@ public class SocketChannelWatcher {
      * watches for messages from the channel
      */
     private void watch() {
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        FrameDecoder decoder = new FrameDecoder();
         while (true) {
             try {
                 int numSelected = selector.select();
@@ -53,23 +56,42 @@ public class SocketChannelWatcher {
                     SelectionKey key = iterator.next();
                     iterator.remove();
                     SocketChannel channel = ((SocketChannel) key.channel());
-                    int numReadBytes = channel.read(buffer);
-                    boolean noMessage = numReadBytes == 0;
-                    if (noMessage) {
-                        continue;
+                    int numReadBytes = channel.read(decoder.writableBuffer());
+                    if (numReadBytes == -1) {
+                        System.out.println("Server closed connection");
+                        channel.close();
+                        decoder.release();
+                        streams.closeAll();
+                        return;
+                    }
+                    Frame frame;
+                    while ((frame = decoder.next()) != null) {
+                        if (streams.handle(frame)) {
+                            continue;
+                        }
+                        if (frame.getType() == Frame.TEXT) {
+                            System.out.print(frame.getText());
+                        } else if (frame.getType() == Frame.PING) {
+                            sendPong();
+                        }
                     }
-
-                    String message = new String(buffer.array(), StandardCharsets.UTF_8).replace("\u0000", "");
-                    System.out.print(message);
-                    Arrays.fill(buffer.array(), (byte) 0);
-                    buffer.clear();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+                decoder.release();
+                streams.closeAll();
                 return;
             }
         }
     }
 
-
+    /**
+     * answers server's liveness probe through the writer thread
+     */
+    private void sendPong() throws IOException {
+        ByteBuffer buffer = BufferPool.SHARED.acquire(Frame.HEADER_SIZE);
+        Frame.writeHeader(buffer, Frame.PONG, 0);
+        buffer.flip();
+        streams.send(buffer);
+    }
 }
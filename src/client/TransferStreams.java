@@ -0,0 +1,255 @@
+package client;
+
+import common.BufferPool;
+import common.ChunkCompressor;
+import common.FileUploadTask;
+import common.Frame;
+import common.FrameSink;
+import common.TransferStream;
+import server.FileMessage;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File transfers multiplexed on the chat connection. Routes stream frames and answers to metas
+ * to their uploads and downloads, frames of uploads are written between chat messages.
+ * Every frame for the server goes through {@link #send(ByteBuffer)} to the writer thread, which waits
+ * for a full socket buffer with a selector. The thread reading the connection never blocks on a write,
+ * and the outbound queue is bounded by the windows of the uploads
+ */
+class TransferStreams implements FrameSink {
+    private final SocketChannel channel;
+    private final BlockingQueue<ByteBuffer> outbound = new LinkedBlockingQueue<>();
+    /**
+     * set when the connection is lost, later frames are refused
+     */
+    private volatile boolean closed;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, TransferStream> uploads = new ConcurrentHashMap<>();
+    private final Map<Integer, FileDownloader> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * starts the writer thread
+     *
+     * @param channel non-blocking chat connection
+     */
+    TransferStreams(SocketChannel channel) {
+        this.channel = channel;
+        Thread writer = new Thread(this::write, "client-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * queues the frame for the writer thread, never blocks
+     *
+     * @param frame pooled buffer, released after it is written
+     * @throws IOException if the connection is lost
+     */
+    @Override
+    public void send(ByteBuffer frame) throws IOException {
+        if (closed) {
+            BufferPool.SHARED.release(frame);
+            throw new IOException("connection is closed");
+        }
+        outbound.add(frame);
+    }
+
+    /**
+     * writes queued frames in order until the connection breaks
+     */
+    private void write() {
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_WRITE);
+            while (true) {
+                ByteBuffer frame = outbound.take();
+                try {
+                    while (frame.hasRemaining()) {
+                        if (channel.write(frame) == 0) {
+                            selector.select(1000);
+                            selector.selectedKeys().clear();
+                        }
+                    }
+                } finally {
+                    BufferPool.SHARED.release(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                e.printStackTrace();
+                System.out.println("error sending message");
+                try {
+                    // the reading thread sees the connection is lost
+                    channel.close();
+                } catch (IOException closeError) {
+                    closeError.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        ByteBuffer frame;
+        while ((frame = outbound.poll()) != null) {
+            BufferPool.SHARED.release(frame);
+        }
+    }
+
+    /**
+     * @return stream for a new upload
+     */
+    TransferStream openUpload() {
+        TransferStream stream = new TransferStream(nextId.getAndIncrement());
+        uploads.put(stream.getId(), stream);
+        return stream;
+    }
+
+    void closeUpload(TransferStream stream) {
+        uploads.remove(stream.getId());
+    }
+
+    /**
+     * @param fileId id of the requested file
+     * @return stream id to put into the request
+     */
+    int openDownload(String fileId) {
+        int id = nextId.getAndIncrement();
+        downloads.put(id, new FileDownloader(fileId));
+        return id;
+    }
+
+    /**
+     * stops all transfers after the connection is lost
+     */
+    void closeAll() {
+        closed = true;
+        uploads.values().forEach(TransferStream::reset);
+        uploads.clear();
+        downloads.values().forEach(FileDownloader::abort);
+        downloads.clear();
+    }
+
+    /**
+     * called by the thread reading the chat connection
+     *
+     * @param frame frame from the server
+     * @return true if the frame belongs to a transfer and is handled
+     * @throws IOException if the connection is broken
+     */
+    boolean handle(Frame frame) throws IOException {
+        switch (frame.getType()) {
+            case Frame.STREAM:
+                received(frame);
+                return true;
+            case Frame.WINDOW: {
+                TransferStream stream = uploads.get(frame.getStreamId());
+                if (stream != null) {
+                    stream.grant(frame.getWindowIncrement());
+                }
+                return true;
+            }
+            case Frame.RESET: {
+                int id = frame.getStreamId();
+                TransferStream stream = uploads.remove(id);
+                if (stream != null) {
+                    stream.reset();
+                }
+                FileDownloader downloader = downloads.remove(id);
+                if (downloader != null) {
+                    downloader.abort();
+                }
+                return true;
+            }
+            case Frame.TEXT:
+                return answered(frame.getText());
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * saves a chunk of a download and grants its size back to the server. An empty chunk ends the download
+     */
+    private void received(Frame frame) throws IOException {
+        int id = frame.getStreamId();
+        FileDownloader downloader = downloads.get(id);
+        if (downloader == null) {
+            return;
+        }
+        try {
+            ByteBuffer data = frame.getCheckedData();
+            int length = data.remaining();
+            if (length == 0) {
+                downloads.remove(id);
+                downloader.finish();
+                return;
+            }
+            try {
+                downloader.save(data);
+            } catch (IOException e) {
+                System.out.println("Cannot save the file: " + e.getMessage());
+                cancelDownload(id, downloader);
+                return;
+            }
+            send(Frame.encodeControl(Frame.WINDOW, id, length, BufferPool.SHARED));
+        } catch (ProtocolException e) {
+            System.out.println("Download is corrupt: " + e.getMessage());
+            cancelDownload(id, downloader);
+        }
+    }
+
+    /**
+     * passes answer to an upload meta or meta of a download to its stream
+     *
+     * @param text text from the server
+     * @return true if the text belongs to a stream
+     */
+    private boolean answered(String text) throws IOException {
+        boolean resume = text.startsWith(FileUploadTask.RESUME_COMMAND);
+        if (!resume && !text.startsWith("/file")) {
+            return false;
+        }
+        int id = TransferStream.parseId(text);
+        if (id < 0) {
+            return false;
+        }
+        if (resume) {
+            TransferStream stream = uploads.get(id);
+            String[] args = text.trim().split("\\s+");
+            if (stream != null && args.length > 1) {
+                stream.resume(Long.parseLong(args[1]), Arrays.asList(args).contains(ChunkCompressor.TOKEN));
+            }
+            return true;
+        }
+        FileDownloader downloader = downloads.get(id);
+        if (downloader != null) {
+            try {
+                downloader.start(FileMessage.parse(text));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Cannot save the file: " + e.getMessage());
+                cancelDownload(id, downloader);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * stops a download keeping the received part and tells the server to stop sending
+     */
+    private void cancelDownload(int id, FileDownloader downloader) throws IOException {
+        downloads.remove(id);
+        downloader.abort();
+        send(Frame.encodeControl(Frame.RESET, id, 0, BufferPool.SHARED));
+    }
+}
@@ -0,0 +1,160 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of direct buffers grouped in power of two size classes.
+ * Every {@link #acquire(int)} must be paired with {@link #release(ByteBuffer)}.
+ * With -Dbufferpool.debug=true the pool remembers where outstanding buffers were acquired
+ * and reports them on exit
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 9;
+    private static final int MAX_SHIFT = 20;
+    /**
+     * bytes kept in the free list of each size class
+     */
+    private static final int MAX_RETAINED_PER_CLASS = Integer.getInteger("bufferpool.maxRetained", 8 * 1024 * 1024);
+    private static final boolean DEBUG = Boolean.getBoolean("bufferpool.debug");
+
+    public static final BufferPool SHARED = new BufferPool();
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    /**
+     * acquisition site of every outstanding buffer, debug mode only. Guarded by itself
+     */
+    private final Map<ByteBuffer, Throwable> acquiredAt = new IdentityHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        free = (Queue<ByteBuffer>[]) new Queue<?>[classes];
+        freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+        }
+        if (DEBUG) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::reportLeaks));
+        }
+    }
+
+    /**
+     * @param size minimal capacity
+     * @return cleared direct buffer with capacity of at least size
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass < free.length) {
+            buffer = free[sizeClass].poll();
+        }
+        if (buffer != null) {
+            freeCount[sizeClass].decrementAndGet();
+            hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            misses.incrementAndGet();
+            int capacity = sizeClass < free.length ? 1 << (sizeClass + MIN_SHIFT) : size;
+            buffer = ByteBuffer.allocateDirect(capacity);
+            reservedBytes.addAndGet(capacity);
+        }
+        outstanding.incrementAndGet();
+        if (DEBUG) {
+            synchronized (acquiredAt) {
+                acquiredAt.put(buffer, new Throwable("buffer of " + buffer.capacity() + " bytes acquired here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * returns buffer to the pool. The buffer must not be used afterwards
+     *
+     * @param buffer buffer obtained from {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        if (DEBUG) {
+            synchronized (acquiredAt) {
+                if (acquiredAt.remove(buffer) == null) {
+                    new IllegalStateException("buffer released twice or not acquired from pool").printStackTrace();
+                    return;
+                }
+            }
+        }
+        outstanding.decrementAndGet();
+        int sizeClass = sizeClass(buffer.capacity());
+        boolean pooled = sizeClass < free.length && buffer.capacity() == 1 << (sizeClass + MIN_SHIFT);
+        if (pooled && freeCount[sizeClass].incrementAndGet() <= MAX_RETAINED_PER_CLASS >> (sizeClass + MIN_SHIFT)) {
+            free[sizeClass].offer(buffer);
+        } else {
+            if (pooled) {
+                freeCount[sizeClass].decrementAndGet();
+            }
+            reservedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    /**
+     * @return share of acquisitions served from the pool
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return buffers acquired and not released yet
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return capacity of all direct buffers allocated by the pool and not discarded
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @return one line of pool statistics
+     */
+    public String describe() {
+        return String.format("buffer pool: hit rate %.1f%%, %d buffers outstanding, %d bytes reserved",
+                getHitRate() * 100, getOutstanding(), getReservedBytes());
+    }
+
+    /**
+     * prints acquisition sites of outstanding buffers, debug mode only
+     */
+    public void reportLeaks() {
+        synchronized (acquiredAt) {
+            acquiredAt.values().forEach(Throwable::printStackTrace);
+        }
+        System.err.println(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool[hitRate=%.2f, outstanding=%d, reservedBytes=%d]",
+                getHitRate(), getOutstanding(), getReservedBytes());
+    }
+}
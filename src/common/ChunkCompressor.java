@@ -0,0 +1,81 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates file chunks of a transfer. Every chunk is a complete deflate stream, so the receiver inflates
+ * chunks as they come and a transfer can start from any offset
+ */
+public class ChunkCompressor {
+    /**
+     * meta token offering or accepting compression
+     */
+    public static final String TOKEN = "deflate";
+    /**
+     * raw bytes per compressed chunk, leaves room for deflate overhead on incompressible data
+     */
+    static final int MAX_CHUNK = FileUploadTask.CHUNK_SIZE - 1024;
+    /**
+     * bytes sampled to decide if a file is worth compressing
+     */
+    static final int SAMPLE_SIZE = 256 * 1024;
+    /**
+     * sample must shrink below this share of its size
+     */
+    private static final double MAX_RATIO = 0.9;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * deflates the start of the region, already compressed data (archives, media) does not shrink
+     *
+     * @param region data where the transfer starts, the first {@link #SAMPLE_SIZE} bytes are sampled
+     * @return true if compressing the data saves bandwidth
+     */
+    static boolean isCompressible(ByteBuffer region) {
+        int sample = Math.min(SAMPLE_SIZE, region.remaining());
+        if (sample <= 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteBuffer out = BufferPool.SHARED.acquire(SAMPLE_SIZE);
+        try {
+            deflater.setInput(region.slice(region.position(), sample));
+            deflater.finish();
+            long compressed = 0;
+            while (!deflater.finished() && compressed < sample * MAX_RATIO) {
+                out.clear();
+                compressed += deflater.deflate(out);
+            }
+            return compressed < sample * MAX_RATIO;
+        } finally {
+            deflater.end();
+            BufferPool.SHARED.release(out);
+        }
+    }
+
+    /**
+     * deflates one chunk
+     *
+     * @param chunk raw bytes between position and limit, at most {@link #MAX_CHUNK}
+     * @param out   receives the stream after its position, has at least {@link FileUploadTask#CHUNK_SIZE} free
+     * @return compressed size
+     */
+    int compress(ByteBuffer chunk, ByteBuffer out) {
+        deflater.reset();
+        deflater.setInput(chunk);
+        deflater.finish();
+        int start = out.position();
+        while (!deflater.finished()) {
+            if (deflater.deflate(out) == 0 && !out.hasRemaining()) {
+                throw new IllegalStateException("compressed chunk does not fit the frame");
+            }
+        }
+        return out.position() - start;
+    }
+
+    void end() {
+        deflater.end();
+    }
+}
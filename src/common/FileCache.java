@@ -0,0 +1,412 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Size-bounded cache of small immutable files in direct buffers, so a popular file is read from disk once
+ * and every download of it slices the same off-heap memory.
+ * Eviction follows W-TinyLFU: a new file enters a small LRU window, a file leaving the window enters
+ * the main space only if it is requested more often than the files it would evict there. The main space is
+ * a segmented LRU, a file hit again in its probation segment moves to the protected one.
+ * Frequencies come from a count-min sketch which is halved periodically, so old popularity fades.
+ * Admission is decided before a file is read: a file the window would take is read on its second request,
+ * a file too large for the window is read only if it beats the files it would evict. Other downloads
+ * read from disk and take no memory
+ */
+public class FileCache {
+    /**
+     * share of the capacity taken by the window
+     */
+    private static final double WINDOW_SHARE = 0.01;
+    /**
+     * share of the main space taken by the protected segment
+     */
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final long capacity;
+    /**
+     * bytes of the probation and protected segments together
+     */
+    private final long mainLimit;
+    private final long maxFile;
+    /**
+     * all cached files, guarded by this
+     */
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private final Segment window;
+    private final Segment probation;
+    private final Segment protectedSegment;
+    private final FrequencySketch sketch = new FrequencySketch();
+    /**
+     * files being read, later requests wait for the same read
+     */
+    private final Map<Path, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    /**
+     * counters, guarded by this
+     */
+    private long hits;
+    private long misses;
+    private long rejected;
+    private long evicted;
+    private long servedBytes;
+
+    /**
+     * @param capacity bytes of all cached files
+     * @param maxFile  largest file cached, larger ones are always read from disk
+     */
+    public FileCache(long capacity, long maxFile) {
+        this.capacity = capacity;
+        this.maxFile = Math.min(maxFile, Integer.MAX_VALUE);
+        window = new Segment((long) (capacity * WINDOW_SHARE));
+        mainLimit = capacity - window.limit;
+        probation = new Segment(mainLimit);
+        protectedSegment = new Segment((long) (mainLimit * PROTECTED_SHARE));
+    }
+
+    /**
+     * @param path immutable file
+     * @return read-only view of the content, null if the file is not cached and has to be read from disk
+     * @throws IOException if the file cannot be read
+     */
+    public ByteBuffer get(Path path) throws IOException {
+        synchronized (this) {
+            sketch.increment(path);
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                hits++;
+                onHit(entry);
+                return entry.content.duplicate();
+            }
+            misses++;
+        }
+        long size = Files.size(path);
+        if (size > maxFile || size > mainLimit || !admits(path, size)) {
+            return null;
+        }
+        CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = loading.putIfAbsent(path, load);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            ByteBuffer content = read(path, (int) size);
+            synchronized (this) {
+                add(new Entry(path, content));
+            }
+            load.complete(content);
+            return content.duplicate();
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(path, load);
+        }
+    }
+
+    /**
+     * @param bytes bytes of a cached file sent to a client
+     */
+    public synchronized void served(long bytes) {
+        servedBytes += bytes;
+    }
+
+    /**
+     * drops a file which is deleted
+     *
+     * @param path file
+     */
+    public synchronized void invalidate(Path path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            entry.segment.remove(entry);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getServedBytes() {
+        return servedBytes;
+    }
+
+    /**
+     * @return one line of cache statistics
+     */
+    public synchronized String describe() {
+        long requests = hits + misses;
+        return String.format("cache: %d files, %d of %d bytes, hits %d, misses %d (hit ratio %.1f%%), " +
+                        "%d bytes served from cache, %d rejected by admission, %d evicted",
+                entries.size(), window.bytes + probation.bytes + protectedSegment.bytes, capacity, hits, misses,
+                requests > 0 ? hits * 100.0 / requests : 0.0, servedBytes, rejected, evicted);
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> load) throws IOException {
+        try {
+            return load.get().duplicate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while the file was read", e);
+        } catch (ExecutionException e) {
+            throw new IOException("file cannot be read", e.getCause());
+        }
+    }
+
+    /**
+     * @return flipped read-only direct buffer with the whole file
+     */
+    private static ByteBuffer read(Path path, int size) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect(size);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (file.read(content) == -1) {
+                    throw new IOException(path + " is shorter than " + size + " bytes");
+                }
+            }
+        }
+        return content.flip().asReadOnlyBuffer();
+    }
+
+    private void onHit(Entry entry) {
+        if (entry.segment == probation) {
+            probation.remove(entry);
+            protectedSegment.add(entry);
+            while (protectedSegment.bytes > protectedSegment.limit) {
+                Entry demoted = protectedSegment.oldest();
+                protectedSegment.remove(demoted);
+                probation.add(demoted);
+            }
+        } else {
+            entry.segment.touch(entry);
+        }
+    }
+
+    /**
+     * decides whether a missed file is worth reading into memory
+     *
+     * @param path missed file
+     * @param size its size
+     * @return false to serve the file from disk
+     */
+    private synchronized boolean admits(Path path, long size) {
+        if (size <= window.limit) {
+            // the first request only counts, a file downloaded once is not worth the memory
+            return sketch.frequency(path) > 1;
+        }
+        if (victims(path, size) == null) {
+            rejected++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * puts a new file into the window, files pushed out of the window compete for the main space.
+     * A file larger than the window competes right away
+     */
+    private void add(Entry entry) {
+        if (entries.putIfAbsent(entry.path, entry) != null) {
+            // read again by a request which missed just before the first read was added
+            return;
+        }
+        if (entry.size > window.limit) {
+            offer(entry);
+            return;
+        }
+        window.add(entry);
+        while (window.bytes > window.limit) {
+            Entry candidate = window.oldest();
+            window.remove(candidate);
+            offer(candidate);
+        }
+    }
+
+    /**
+     * admits a file into the main space if it is more popular than every file it would evict
+     */
+    private void offer(Entry candidate) {
+        List<Entry> victims = victims(candidate.path, candidate.size);
+        if (victims == null) {
+            entries.remove(candidate.path);
+            rejected++;
+            return;
+        }
+        for (Entry victim : victims) {
+            victim.segment.remove(victim);
+            entries.remove(victim.path);
+            evicted++;
+        }
+        probation.add(candidate);
+    }
+
+    /**
+     * @param candidate file entering the main space
+     * @param size      its size
+     * @return files to evict to make room for it, null if some of them are requested as often as the candidate
+     */
+    private List<Entry> victims(Path candidate, long size) {
+        long needed = probation.bytes + protectedSegment.bytes + size - mainLimit;
+        List<Entry> victims = new ArrayList<>();
+        if (needed <= 0) {
+            return victims;
+        }
+        int frequency = sketch.frequency(candidate);
+        long freed = 0;
+        for (Iterator<Entry> queue = new VictimIterator(); queue.hasNext() && freed < needed; ) {
+            Entry victim = queue.next();
+            if (sketch.frequency(victim.path) >= frequency) {
+                break;
+            }
+            victims.add(victim);
+            freed += victim.size;
+        }
+        return freed >= needed ? victims : null;
+    }
+
+    /**
+     * files of the main space, least recently used first, probation before protected
+     */
+    private class VictimIterator implements Iterator<Entry> {
+        private Iterator<Entry> current = probation.queue.values().iterator();
+        private boolean inProtected;
+
+        @Override
+        public boolean hasNext() {
+            if (!current.hasNext() && !inProtected) {
+                current = protectedSegment.queue.values().iterator();
+                inProtected = true;
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            hasNext();
+            return current.next();
+        }
+    }
+
+    /**
+     * LRU queue of files, oldest first
+     */
+    private static final class Segment {
+        final LinkedHashMap<Path, Entry> queue = new LinkedHashMap<>();
+        /**
+         * bytes the segment holds before it overflows
+         */
+        final long limit;
+        long bytes;
+
+        Segment(long limit) {
+            this.limit = limit;
+        }
+
+        void add(Entry entry) {
+            queue.put(entry.path, entry);
+            entry.segment = this;
+            bytes += entry.size;
+        }
+
+        void remove(Entry entry) {
+            queue.remove(entry.path);
+            bytes -= entry.size;
+        }
+
+        void touch(Entry entry) {
+            queue.remove(entry.path);
+            queue.put(entry.path, entry);
+        }
+
+        Entry oldest() {
+            return queue.values().iterator().next();
+        }
+    }
+
+    private static final class Entry {
+        final Path path;
+        final ByteBuffer content;
+        final int size;
+        Segment segment;
+
+        Entry(Path path, ByteBuffer content) {
+            this.path = path;
+            this.content = content;
+            this.size = content.remaining();
+        }
+    }
+
+    /**
+     * count-min sketch with 4-bit counters in four rows. After {@link #SAMPLE_SIZE} increments
+     * all counters are halved
+     */
+    private static final class FrequencySketch {
+        private static final int WIDTH = 1024;
+        private static final int SAMPLE_SIZE = 10 * WIDTH;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97CB3127, 0x2F0B8A57, 0xC2B2AE35, 0x85EBCA6B};
+
+        private final byte[][] rows = new byte[SEEDS.length][WIDTH];
+        private int additions;
+
+        void increment(Object item) {
+            int hash = spread(item.hashCode());
+            boolean added = false;
+            for (int row = 0; row < rows.length; row++) {
+                int index = index(hash, row);
+                if (rows[row][index] < MAX_COUNT) {
+                    rows[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == SAMPLE_SIZE) {
+                reset();
+            }
+        }
+
+        int frequency(Object item) {
+            int hash = spread(item.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < rows.length; row++) {
+                frequency = Math.min(frequency, rows[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        private static int index(int hash, int row) {
+            int mixed = (hash ^ SEEDS[row]) * 0x27D4EB2D;
+            return (mixed ^ (mixed >>> 15)) & (WIDTH - 1);
+        }
+    }
+}
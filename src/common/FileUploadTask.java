@@ -1,66 +1,574 @@
 package common;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
 
 
 /**
- * Class to upload files to open SocketChannel
+ * Class to upload files, either to a SocketChannel of its own or as a {@link TransferStream} multiplexed
+ * on the chat connection. On its own connection file data goes from the page cache to the socket
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, other reads of the file
+ * go through one pooled buffer of the transfer.
+ * Every chunk carries its CRC32C, a transfer may start from any offset to continue an interrupted one.
+ * An upload tells the SHA-256 of the file up front, so the receiver can skip content it already has.
+ * Compressible files are deflated chunk by chunk when the receiver accepts it, see {@link ChunkCompressor}.
+ * A download of a small file may be sliced from a {@link FileCache} instead of being read from disk
  */
 public class FileUploadTask implements Runnable {
-    public static final int BUFFER_SIZE = 1024;
+    /**
+     * payload of one {@link Frame#DATA} frame, the whole frame fits the largest pooled buffer of the receiver
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024 - Frame.HEADER_SIZE - Frame.CHECKSUM_SIZE;
+    /**
+     * reply of the receiver to an upload meta: /resume offset [deflate] stream:id
+     */
+    public static final String RESUME_COMMAND = "/resume";
+    /**
+     * marks the content hash in a meta
+     */
+    public static final String HASH_PREFIX = "sha256:";
+    /**
+     * bytes read at a time while hashing the file
+     */
+    private static final int HASH_READ_SIZE = 256 * 1024;
+    /**
+     * own connection of the transfer, null for a stream
+     */
     private final SocketChannel channel;
+    /**
+     * shared connection and stream state of a multiplexed transfer, null for own connection
+     */
+    private final FrameSink sink;
+    private final TransferStream stream;
     private final Path filePath;
+    /**
+     * file name told to the receiver
+     */
+    private final String fileName;
     private final String name;
+    /**
+     * position to send from, -1 to ask the receiver after the meta
+     */
+    private final long requestedOffset;
+    /**
+     * true if the receiver can take compressed chunks
+     */
+    private final boolean compression;
+    /**
+     * true when chunks of this transfer are deflated
+     */
+    private boolean compressed;
+    /**
+     * waits for a full socket buffer to drain when the channel is non-blocking, opened on first need
+     */
+    private Selector writeSelector;
+    /**
+     * bandwidth limits set by {@link TransferScheduler}, null for no limit
+     */
+    private TokenBucket globalLimit;
+    private TokenBucket ownLimit;
+    private volatile long size = -1;
+    private volatile long transferred;
+    /**
+     * true while the transfer waits for its bandwidth limit
+     */
+    private volatile boolean throttled;
+    /**
+     * cache of small files, null to read from disk
+     */
+    private FileCache cache;
+    /**
+     * cached content of the file, null if it is read from disk
+     */
+    private ByteBuffer content;
+    /**
+     * pooled buffer file data is read into, acquired on first need and released when the transfer ends
+     */
+    private ByteBuffer readBuffer;
+    /**
+     * runs on the transfer thread before anything is written to the own connection, null for nothing
+     */
+    private Runnable beforeSending;
+
+    private FileUploadTask(SocketChannel channel, FrameSink sink, TransferStream stream, Path filePath, String fileName,
+                           String name, long requestedOffset, boolean compression) {
+        this.channel = channel;
+        this.sink = sink;
+        this.stream = stream;
+        this.filePath = filePath;
+        this.fileName = fileName;
+        this.name = name;
+        this.requestedOffset = requestedOffset;
+        this.compression = compression;
+    }
 
     /**
+     * sends file to the server as a stream. After the meta the server answers with the number of bytes
+     * it already has, delivered through {@link TransferStream#resume(long, boolean)}, the upload continues from there
      *
-     * @param channel to send file
+     * @param sink     chat connection
+     * @param stream   stream of the upload
      * @param fileName source file name
-     * @param name client's name
+     * @param name     client's name
+     * @param compress true to offer compression to the server
+     * @return upload task
      */
-    public FileUploadTask(SocketChannel channel, Path fileName, String name) {
-        this.channel = channel;
-        this.filePath = fileName;
-        this.name = name;
+    public static FileUploadTask upload(FrameSink sink, TransferStream stream, Path fileName, String name,
+                                        boolean compress) {
+        return new FileUploadTask(null, sink, stream, fileName, fileName.getFileName().toString(), name, -1, compress);
+    }
+
+    /**
+     * sends file to a client starting from offset
+     *
+     * @param channel  to send file
+     * @param filePath source file
+     * @param fileName file name told to the client
+     * @param name     sender's name
+     * @param offset   bytes the client already has, clamped to the file size
+     * @param compress true if the client accepts compressed chunks
+     * @return download task
+     */
+    public static FileUploadTask download(SocketChannel channel, Path filePath, String fileName, String name, long offset,
+                                          boolean compress) {
+        return new FileUploadTask(channel, null, null, filePath, fileName, name, Math.max(0, offset), compress);
+    }
+
+    /**
+     * sends file to a client as a stream starting from offset
+     *
+     * @param sink     chat connection of the client
+     * @param stream   stream asked for by the client
+     * @param filePath source file
+     * @param fileName file name told to the client
+     * @param name     sender's name
+     * @param offset   bytes the client already has, clamped to the file size
+     * @param compress true if the client accepts compressed chunks
+     * @return download task
+     */
+    public static FileUploadTask download(FrameSink sink, TransferStream stream, Path filePath, String fileName,
+                                          String name, long offset, boolean compress) {
+        return new FileUploadTask(null, sink, stream, filePath, fileName, name, Math.max(0, offset), compress);
+    }
+
+    /**
+     * serves the file from the cache, which loads it if it is small enough
+     *
+     * @param cache cache of immutable files
+     */
+    public void useCache(FileCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param beforeSending runs on the transfer thread before the first write to the own connection,
+     *                      e.g. to let other writers of the channel finish
+     */
+    public void beforeSending(Runnable beforeSending) {
+        this.beforeSending = beforeSending;
+    }
+
+    void setLimits(TokenBucket globalLimit, TokenBucket ownLimit) {
+        this.globalLimit = globalLimit;
+        this.ownLimit = ownLimit;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return file size, -1 until the transfer starts
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
     }
 
     @Override
     public void run() {
-        sendMeta();
-        if (Files.exists(filePath)) {
-            try (InputStream inputStream = Files.newInputStream(filePath);
-            SocketChannel channel = this.channel) {
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-                while (inputStream.read(buffer.array()) != -1) {
-                    channel.write(buffer);
-                    buffer.clear();
-                    Arrays.fill(buffer.array(), (byte) 0);
-                }
-                channel.close();
+        if (channel != null ? !channel.isOpen() : stream.isReset()) {
+            // receiver left while the transfer was queued
+            return;
+        }
+        if (channel != null && beforeSending != null) {
+            beforeSending.run();
+        }
+        if (!Files.exists(filePath)) {
+            if (stream != null) {
+                reset();
+                return;
+            }
+            try {
+                sendMeta(-1, null);
             } catch (IOException e) {
-                System.out.println("Cannot upload this file. Try another one");
+                e.printStackTrace();
+            }
+            return;
+        }
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        long sendStart = -1;
+        try (FileChannel file = openSource()) {
+            size = content != null ? content.remaining() : file.size();
+            if (requestedOffset >= 0) {
+                transferred = Math.min(requestedOffset, size);
+                compressed = compression && isCompressible(file, transferred);
+                sendMeta(transferred, null);
+            } else {
+                compressed = compression && isCompressible(file, 0);
+                sendMeta(-1, contentHash(file));
+                transferred = Math.min(stream.awaitResume(), size);
+                compressed = compressed && stream.isCompressionAccepted();
+            }
+            sendStart = transferred;
+            if (stream != null) {
+                sendStream(file);
+            } else {
+                sendDirect(file);
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot upload this file. Try another one");
+            if (stream != null) {
+                reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (readBuffer != null) {
+                BufferPool.SHARED.release(readBuffer);
+                readBuffer = null;
+            }
+            if (channel != null) {
+                closeWriteSelector();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (content != null && sendStart >= 0) {
+            cache.served(transferred - sendStart);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = filePath.toString();
+            event.bytes = transferred;
+            event.cached = content != null;
+            event.commit();
+        }
+    }
+
+    /**
+     * takes the content from the cache if it is there or small enough to be cached
+     *
+     * @return file to read, null if the content comes from the cache
+     * @throws IOException if the file cannot be read
+     */
+    private FileChannel openSource() throws IOException {
+        content = cache != null ? cache.get(filePath) : null;
+        return content != null ? null : FileChannel.open(filePath, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return part of the content, sliced from the cached copy or read from the file into {@link #readBuffer},
+     * valid until the next call
+     */
+    private ByteBuffer region(FileChannel file, long position, int length) throws IOException {
+        if (content != null) {
+            return content.slice((int) position, length);
+        }
+        if (readBuffer != null && readBuffer.capacity() < length) {
+            BufferPool.SHARED.release(readBuffer);
+            readBuffer = null;
+        }
+        if (readBuffer == null) {
+            readBuffer = BufferPool.SHARED.acquire(length);
+        }
+        readBuffer.clear().limit(length);
+        readFully(file, readBuffer, position);
+        return readBuffer.flip();
+    }
+
+    /**
+     * fills the buffer from the file, which must not get shorter meanwhile
+     */
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("file was truncated while sending");
             }
+            position += read;
         }
     }
 
+    private boolean isCompressible(FileChannel file, long position) throws IOException {
+        return ChunkCompressor.isCompressible(region(file, position,
+                (int) Math.min(ChunkCompressor.SAMPLE_SIZE, size - position)));
+    }
+
     /**
-     * sends command's meta data (command, file name, user's name)
+     * sends the file in {@link Frame#DATA} frames over its own connection, raw chunks go with transferTo
      */
-    private void sendMeta() {
-        String metaInfo = String.format("/file \"%s\"%s\n", filePath.getFileName().toString(), name);
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        buffer.put(metaInfo.getBytes());
-        buffer.flip();
+    private void sendDirect(FileChannel file) throws IOException, InterruptedException {
+        ByteBuffer header = BufferPool.SHARED.acquire(Frame.HEADER_SIZE + Frame.CHECKSUM_SIZE);
+        ByteBuffer packed = null;
+        ChunkCompressor compressor = null;
         try {
-            channel.write(buffer);
+            int chunkSize = chunkSize(CHUNK_SIZE);
+            if (compressed) {
+                chunkSize = Math.min(chunkSize, ChunkCompressor.MAX_CHUNK);
+                compressor = new ChunkCompressor();
+                packed = BufferPool.SHARED.acquire(CHUNK_SIZE);
+            }
+            CRC32C crc = new CRC32C();
+            while (transferred < size) {
+                int chunk = (int) Math.min(chunkSize, size - transferred);
+                ByteBuffer data = region(file, transferred, chunk);
+                int length = chunk;
+                if (compressor != null) {
+                    packed.clear();
+                    length = compressor.compress(data, packed);
+                    packed.flip();
+                    data = packed;
+                }
+                throttle(length);
+                crc.reset();
+                crc.update(data.duplicate());
+                header.clear();
+                Frame.writeHeader(header, Frame.DATA, Frame.CHECKSUM_SIZE + length);
+                header.putInt((int) crc.getValue());
+                header.flip();
+                writeFully(header);
+                if (compressor != null) {
+                    writeFully(packed);
+                } else if (content != null) {
+                    writeFully(data);
+                } else {
+                    transferFully(file, transferred, chunk);
+                }
+                transferred += chunk;
+            }
+        } finally {
+            BufferPool.SHARED.release(header);
+            if (packed != null) {
+                BufferPool.SHARED.release(packed);
+                compressor.end();
+            }
+        }
+    }
+
+    /**
+     * sends the file in {@link Frame#STREAM} frames within the window granted by the receiver,
+     * then a frame without data to end the stream
+     */
+    private void sendStream(FileChannel file) throws IOException, InterruptedException {
+        ChunkCompressor compressor = compressed ? new ChunkCompressor() : null;
+        int chunkSize = chunkSize(TransferStream.CHUNK_SIZE);
+        int dataStart = Frame.HEADER_SIZE + Frame.STREAM_ID_SIZE + Frame.CHECKSUM_SIZE;
+        CRC32C crc = new CRC32C();
+        try {
+            while (transferred < size) {
+                int chunk = (int) Math.min(chunkSize, size - transferred);
+                ByteBuffer frame = BufferPool.SHARED.acquire(dataStart + TransferStream.CHUNK_SIZE + 1024);
+                frame.position(dataStart);
+                try {
+                    if (compressor != null) {
+                        compressor.compress(region(file, transferred, chunk), frame);
+                    } else if (content != null) {
+                        frame.put(content.slice((int) transferred, chunk));
+                    } else {
+                        // straight into the frame, no copy
+                        readFully(file, frame.limit(dataStart + chunk), transferred);
+                        frame.limit(frame.capacity());
+                    }
+                } catch (IOException e) {
+                    BufferPool.SHARED.release(frame);
+                    throw e;
+                }
+                int length = frame.position() - dataStart;
+                crc.reset();
+                crc.update(frame.duplicate().flip().position(dataStart));
+                frame.flip();
+                Frame.writeHeader(frame, Frame.STREAM, Frame.STREAM_ID_SIZE + Frame.CHECKSUM_SIZE + length);
+                frame.putInt(stream.getId()).putInt((int) crc.getValue()).position(0);
+                try {
+                    stream.acquire(length);
+                    throttle(length);
+                } catch (IOException | InterruptedException e) {
+                    BufferPool.SHARED.release(frame);
+                    throw e;
+                }
+                sink.send(frame);
+                transferred += chunk;
+            }
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+        ByteBuffer end = BufferPool.SHARED.acquire(dataStart);
+        Frame.writeHeader(end, Frame.STREAM, Frame.STREAM_ID_SIZE + Frame.CHECKSUM_SIZE);
+        end.putInt(stream.getId()).putInt(0).flip();
+        sink.send(end);
+    }
+
+    /**
+     * tells the receiver the stream is aborted
+     */
+    private void reset() {
+        try {
+            sink.send(Frame.encodeControl(Frame.RESET, stream.getId(), 0, BufferPool.SHARED));
         } catch (IOException e) {
-            e.printStackTrace();
+            // connection is gone, nothing to tell
+        }
+    }
+
+    /**
+     * @param maxChunk largest chunk of the transport
+     * @return chunk size giving at least ten chunks per second under the tightest limit
+     */
+    private int chunkSize(int maxChunk) {
+        long rate = Long.MAX_VALUE;
+        if (globalLimit != null) {
+            rate = globalLimit.getRate();
+        }
+        if (ownLimit != null) {
+            rate = Math.min(rate, ownLimit.getRate());
+        }
+        return (int) Math.max(1, Math.min(maxChunk, rate / 10));
+    }
+
+    /**
+     * waits until both limits allow sending the chunk
+     */
+    private void throttle(int chunk) throws InterruptedException {
+        long wait = 0;
+        if (globalLimit != null) {
+            wait = globalLimit.take(chunk);
+        }
+        if (ownLimit != null) {
+            wait = Math.max(wait, ownLimit.take(chunk));
+        }
+        if (wait > 0) {
+            throttled = true;
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            throttled = false;
+        }
+    }
+
+    /**
+     * sends command's meta data (command, file name, user's name, file size, offset of the first chunk,
+     * compression and hash)
+     *
+     * @param offset offset of the first chunk, -1 to send only the size
+     * @param hash   SHA-256 of the file, null to omit
+     * @throws IOException if the connection is broken
+     */
+    private void sendMeta(long offset, String hash) throws IOException {
+        String metaInfo = String.format("/file \"%s\"%s %d%s%s%s%s\n", fileName, name, size,
+                offset >= 0 ? " " + offset : "", compressed ? " " + ChunkCompressor.TOKEN : "",
+                hash != null ? " " + HASH_PREFIX + hash : "",
+                stream != null ? " " + TransferStream.TOKEN_PREFIX + stream.getId() : "");
+        ByteBuffer buffer = Frame.encodeText(metaInfo, BufferPool.SHARED);
+        if (stream != null) {
+            sink.send(buffer);
+            return;
+        }
+        try {
+            writeFully(buffer);
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+
+    /**
+     * @return lowercase hex SHA-256 of the whole file
+     */
+    private String contentHash(FileChannel file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (long position = 0; position < size; position += HASH_READ_SIZE) {
+            digest.update(region(file, position, (int) Math.min(HASH_READ_SIZE, size - position)));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * writes whole buffer, channel may be in non-blocking mode
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    /**
+     * sends a region of the file, transferTo may send less than asked for
+     */
+    private void transferFully(FileChannel file, long position, long count) throws IOException {
+        while (count > 0) {
+            long sent = file.transferTo(position, count, channel);
+            if (sent == 0) {
+                if (position >= file.size()) {
+                    throw new IOException("file was truncated while sending");
+                }
+                awaitWritable();
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    /**
+     * blocks until a non-blocking channel can take more data. The channel may also be registered
+     * with the selector of its owner, a channel can be registered with several selectors
+     */
+    private void awaitWritable() throws IOException {
+        if (channel.isBlocking()) {
+            return;
+        }
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select(1000);
+        writeSelector.selectedKeys().clear();
+    }
+
+    private void closeWriteSelector() {
+        if (writeSelector != null) {
+            try {
+                writeSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 }
@@ -0,0 +1,167 @@
+package common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * Unit of the wire protocol shared by server and clients.
+ * Layout: version (1 byte), type (1 byte), payload length (4 bytes, big endian), payload
+ */
+public class Frame {
+    /**
+     * 2: {@link #DATA} payload starts with a checksum, 3: multiplexed streams
+     */
+    public static final byte VERSION = 3;
+    public static final int HEADER_SIZE = 6;
+    /**
+     * upper bound for a single frame, protects from malformed length fields
+     */
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * command or chat text in UTF-8
+     */
+    public static final byte TEXT = 1;
+    /**
+     * chunk of file data: CRC32C of the chunk (4 bytes, big endian) followed by the chunk
+     */
+    public static final byte DATA = 2;
+    public static final int CHECKSUM_SIZE = 4;
+    /**
+     * liveness probe sent by the server to an idle client, empty payload
+     */
+    public static final byte PING = 3;
+    /**
+     * answer to {@link #PING}, empty payload
+     */
+    public static final byte PONG = 4;
+    /**
+     * chunk of a file transfer multiplexed on the chat connection: stream id (4 bytes) followed by
+     * the same payload as {@link #DATA}. A frame without data ends the stream
+     */
+    public static final byte STREAM = 5;
+    /**
+     * flow control: stream id (4 bytes) and number of payload bytes the receiver takes more (4 bytes)
+     */
+    public static final byte WINDOW = 6;
+    /**
+     * aborts a stream: stream id (4 bytes)
+     */
+    public static final byte RESET = 7;
+    public static final int STREAM_ID_SIZE = 4;
+
+    byte type;
+    /**
+     * view of the payload, valid until the next frame is decoded
+     */
+    ByteBuffer payload;
+
+    Frame() {
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return payload decoded as UTF-8 text
+     */
+    public String getText() {
+        ByteBuffer view = payload.duplicate();
+        return StandardCharsets.UTF_8.decode(view).toString();
+    }
+
+    /**
+     * @return stream id of a {@link #STREAM}, {@link #WINDOW} or {@link #RESET} frame
+     * @throws ProtocolException if the payload is too short
+     */
+    public int getStreamId() throws ProtocolException {
+        if (payload.remaining() < STREAM_ID_SIZE) {
+            throw new ProtocolException("stream frame without stream id");
+        }
+        return payload.getInt(payload.position());
+    }
+
+    /**
+     * @return bytes granted by a {@link #WINDOW} frame
+     * @throws ProtocolException if the payload is too short
+     */
+    public int getWindowIncrement() throws ProtocolException {
+        if (payload.remaining() < STREAM_ID_SIZE + 4) {
+            throw new ProtocolException("window frame without increment");
+        }
+        return payload.getInt(payload.position() + STREAM_ID_SIZE);
+    }
+
+    /**
+     * @return chunk of a {@link #DATA} or {@link #STREAM} frame after its checksum is verified
+     * @throws ProtocolException if the chunk does not match its checksum
+     */
+    public ByteBuffer getCheckedData() throws ProtocolException {
+        int start = type == STREAM ? STREAM_ID_SIZE : 0;
+        if (payload.remaining() < start + CHECKSUM_SIZE) {
+            throw new ProtocolException("data frame without checksum");
+        }
+        ByteBuffer data = payload.duplicate();
+        data.position(data.position() + start);
+        int expected = data.getInt();
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        if ((int) crc.getValue() != expected) {
+            throw new ProtocolException("data frame checksum mismatch");
+        }
+        return data;
+    }
+
+    /**
+     * writes frame header to the buffer
+     *
+     * @param buffer        destination
+     * @param type          frame type
+     * @param payloadLength length of the payload which follows the header
+     */
+    public static void writeHeader(ByteBuffer buffer, byte type, int payloadLength) {
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.putInt(payloadLength);
+    }
+
+    /**
+     * @param type   {@link #WINDOW} or {@link #RESET}
+     * @param stream stream id
+     * @param value  window increment, ignored for {@link #RESET}
+     * @param pool   pool to take the buffer from, the caller releases it
+     * @return flipped pooled buffer containing the frame
+     */
+    public static ByteBuffer encodeControl(byte type, int stream, int value, BufferPool pool) {
+        int length = type == WINDOW ? STREAM_ID_SIZE + 4 : STREAM_ID_SIZE;
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE + length);
+        writeHeader(buffer, type, length);
+        buffer.putInt(stream);
+        if (type == WINDOW) {
+            buffer.putInt(value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param text command or chat text
+     * @param pool pool to take the buffer from, the caller releases it
+     * @return flipped pooled buffer containing {@link #TEXT} frame
+     */
+    public static ByteBuffer encodeText(String text, BufferPool pool) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = pool.acquire(HEADER_SIZE + payload.length);
+        writeHeader(buffer, TEXT, payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,103 @@
+package common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder of {@link Frame}s. Accumulates bytes of one connection and emits
+ * complete frames regardless of how TCP split or coalesced them
+ */
+public class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final BufferPool pool;
+    /**
+     * accumulated bytes in write mode, unread data is between {@link #readIndex} and position
+     */
+    private ByteBuffer buffer;
+    private int readIndex = 0;
+    private final Frame frame = new Frame();
+
+    public FrameDecoder() {
+        this(BufferPool.SHARED);
+    }
+
+    /**
+     * @param pool pool the accumulation buffer is taken from
+     */
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+        buffer = pool.acquire(INITIAL_CAPACITY);
+        frame.payload = buffer.duplicate();
+    }
+
+    /**
+     * @return buffer to read incoming bytes into. Always has free space
+     */
+    public ByteBuffer writableBuffer() {
+        if (readIndex > 0) {
+            buffer.flip();
+            buffer.position(readIndex);
+            buffer.compact();
+            readIndex = 0;
+        }
+        if (!buffer.hasRemaining()) {
+            grow(buffer.capacity() * 2);
+        }
+        return buffer;
+    }
+
+    /**
+     * decodes next complete frame
+     *
+     * @return frame owned by the decoder, valid until the next call, or null if more bytes are needed
+     * @throws ProtocolException on unknown version or oversized frame
+     */
+    public Frame next() throws ProtocolException {
+        int available = buffer.position() - readIndex;
+        if (available < Frame.HEADER_SIZE) {
+            return null;
+        }
+        byte version = buffer.get(readIndex);
+        if (version != Frame.VERSION) {
+            throw new ProtocolException("unsupported protocol version " + version);
+        }
+        int length = buffer.getInt(readIndex + 2);
+        if (length < 0 || length > Frame.MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("invalid frame length " + length);
+        }
+        int frameSize = Frame.HEADER_SIZE + length;
+        if (available < frameSize) {
+            if (frameSize > buffer.capacity()) {
+                grow(Math.max(frameSize, buffer.capacity() * 2));
+            }
+            return null;
+        }
+        frame.type = buffer.get(readIndex + 1);
+        frame.payload.limit(readIndex + frameSize);
+        frame.payload.position(readIndex + Frame.HEADER_SIZE);
+        readIndex += frameSize;
+        return frame;
+    }
+
+    /**
+     * returns the buffer to the pool, the decoder must not be used afterwards
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer grown = pool.acquire(capacity);
+        buffer.flip();
+        buffer.position(readIndex);
+        grown.put(buffer);
+        pool.release(buffer);
+        buffer = grown;
+        readIndex = 0;
+        frame.payload = buffer.duplicate();
+    }
+}
@@ -0,0 +1,15 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Connection that streams share with chat traffic. Frames sent through the sink are written in order
+ */
+public interface FrameSink {
+    /**
+     * @param frame flipped frame in a buffer from {@link BufferPool#SHARED}, the sink releases it
+     * @throws IOException if the connection is broken
+     */
+    void send(ByteBuffer frame) throws IOException;
+}
@@ -0,0 +1,45 @@
+package common;
+
+/**
+ * Thread-safe token bucket limiting bytes per second. Callers may take more tokens than
+ * available and then sleep until the debt is paid, so a large chunk is delayed, not rejected
+ */
+public class TokenBucket {
+    private final long rate;
+    /**
+     * tokens kept while idle, one second of traffic
+     */
+    private final long capacity;
+    /**
+     * guarded by this
+     */
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param rate bytes per second
+     */
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        this.capacity = rate;
+        this.tokens = rate;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * takes tokens for the bytes about to be sent
+     *
+     * @param bytes bytes to send
+     * @return nanoseconds the caller has to wait before sending
+     */
+    public synchronized long take(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+}
@@ -0,0 +1,26 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for a whole file sent by {@link FileUploadTask}
+ */
+@Name("chat.FileTransfer")
+@Label("File Transfer")
+@Category({"Chat", "Files"})
+@Description("File sent to a socket channel")
+class TransferEvent extends jdk.jfr.Event {
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("From Cache")
+    boolean cached;
+}
@@ -0,0 +1,94 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs file transfers on a fixed number of threads. Transfers over the limit wait in a FIFO queue,
+ * and every transfer is shaped by a global and its own {@link TokenBucket}
+ */
+public class TransferScheduler {
+    private final int maxActive;
+    private final ExecutorService executor;
+    /**
+     * null when the bandwidth is not limited
+     */
+    private final TokenBucket globalLimit;
+    private final long perTransferRate;
+    /**
+     * guarded by this
+     */
+    private final Set<FileUploadTask> waiting = new LinkedHashSet<>();
+    private final Set<FileUploadTask> active = new LinkedHashSet<>();
+
+    /**
+     * @param name            name of worker threads
+     * @param maxActive       transfers running at the same time
+     * @param globalRate      bytes per second for all transfers together, 0 for no limit
+     * @param perTransferRate bytes per second for every transfer, 0 for no limit
+     */
+    public TransferScheduler(String name, int maxActive, long globalRate, long perTransferRate) {
+        this.maxActive = Math.max(1, maxActive);
+        executor = Executors.newFixedThreadPool(this.maxActive, task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        globalLimit = globalRate > 0 ? new TokenBucket(globalRate) : null;
+        this.perTransferRate = perTransferRate;
+    }
+
+    /**
+     * queues transfer
+     *
+     * @param task     transfer
+     * @param onQueued called with the position in the queue if the transfer has to wait, before it can start
+     * @param onDone   called on the transfer thread when the transfer ends
+     */
+    public void submit(FileUploadTask task, IntConsumer onQueued, Runnable onDone) {
+        task.setLimits(globalLimit, perTransferRate > 0 ? new TokenBucket(perTransferRate) : null);
+        int position;
+        synchronized (this) {
+            position = active.size() + waiting.size() - maxActive + 1;
+            waiting.add(task);
+        }
+        if (position > 0) {
+            onQueued.accept(position);
+        }
+        executor.execute(() -> {
+            synchronized (this) {
+                waiting.remove(task);
+                active.add(task);
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    active.remove(task);
+                }
+                onDone.run();
+            }
+        });
+    }
+
+    /**
+     * @return one line per active and waiting transfer
+     */
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (FileUploadTask task : active) {
+            lines.add(String.format("active %s: %d of %d bytes%s", task.getFileName(),
+                    task.getTransferred(), task.getSize(), task.isThrottled() ? ", throttled" : ""));
+        }
+        int position = 1;
+        for (FileUploadTask task : waiting) {
+            lines.add(String.format("queued %s: position %d", task.getFileName(), position++));
+        }
+        return lines;
+    }
+}
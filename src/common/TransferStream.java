@@ -0,0 +1,133 @@
+package common;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending side of a file transfer multiplexed on the chat connection. The receiver grants bytes
+ * with {@link Frame#WINDOW} frames as it consumes them, the sender never has more in flight than granted,
+ * so a transfer can neither flood the connection nor starve chat messages
+ */
+public class TransferStream {
+    /**
+     * payload bytes of one {@link Frame#STREAM} chunk, small enough to interleave with chat messages
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * bytes the sender may send before the first grant
+     */
+    public static final int INITIAL_WINDOW = 512 * 1024;
+    /**
+     * meta token carrying the stream id
+     */
+    public static final String TOKEN_PREFIX = "stream:";
+    /**
+     * how long an upload waits for the answer to its meta
+     */
+    private static final long RESUME_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final int id;
+    /**
+     * guarded by this
+     */
+    private long window = INITIAL_WINDOW;
+    private long resumeOffset = -1;
+    private boolean compressionAccepted;
+    private boolean reset;
+
+    public TransferStream(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * waits until the receiver grants enough bytes
+     *
+     * @param bytes payload bytes of the next chunk
+     * @throws IOException if the stream is reset
+     */
+    synchronized void acquire(int bytes) throws IOException, InterruptedException {
+        while (window < bytes && !reset) {
+            wait();
+        }
+        if (reset) {
+            throw new IOException("stream " + id + " was reset");
+        }
+        window -= bytes;
+    }
+
+    /**
+     * @param bytes more bytes the receiver takes
+     */
+    public synchronized void grant(int bytes) {
+        window += bytes;
+        notifyAll();
+    }
+
+    /**
+     * delivers the receiver's answer to an upload meta
+     *
+     * @param offset     bytes the receiver already has
+     * @param compressed true if the receiver takes deflated chunks
+     */
+    public synchronized void resume(long offset, boolean compressed) {
+        resumeOffset = Math.max(0, offset);
+        compressionAccepted = compressed;
+        notifyAll();
+    }
+
+    /**
+     * @return bytes the receiver already has
+     * @throws IOException if the stream is reset or there is no answer in time
+     */
+    synchronized long awaitResume() throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + RESUME_TIMEOUT;
+        while (resumeOffset < 0 && !reset) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new IOException("no answer to the meta of stream " + id);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        if (reset) {
+            throw new IOException("stream " + id + " was reset");
+        }
+        return resumeOffset;
+    }
+
+    synchronized boolean isCompressionAccepted() {
+        return compressionAccepted;
+    }
+
+    synchronized boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * aborts the transfer, the sender stops at the next chunk
+     */
+    public synchronized void reset() {
+        reset = true;
+        notifyAll();
+    }
+
+    /**
+     * @param text meta or answer
+     * @return stream id from the meta token, -1 if there is none
+     */
+    public static int parseId(String text) {
+        for (String token : text.trim().split("\\s+")) {
+            if (token.startsWith(TOKEN_PREFIX)) {
+                try {
+                    return Integer.parseInt(token.substring(TOKEN_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,156 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store of uploaded files. Every distinct content is kept once under its SHA-256,
+ * file ids with the same content share the blob. A blob is deleted when its last reference is released.
+ * Blobs left without references, e.g. by a registry written before a crash, stay until {@link #purgeOrphans()}
+ */
+class BlobStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path dir;
+    /**
+     * file ids pointing at each blob, guarded by this
+     */
+    private final Map<String, Integer> references = new HashMap<>();
+    /**
+     * bytes of all blobs on disk
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * opens store in server.blobs.dir
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    BlobStore() throws IOException {
+        this(Paths.get(System.getProperty("server.blobs.dir", "blobs")));
+    }
+
+    BlobStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        try (Stream<Path> blobs = Files.list(this.dir)) {
+            for (Path blob : (Iterable<Path>) blobs::iterator) {
+                bytes.addAndGet(Files.size(blob));
+            }
+        }
+    }
+
+    /**
+     * @return bytes of all blobs on disk
+     */
+    long size() {
+        return bytes.get();
+    }
+
+    /**
+     * @param hash value to check
+     * @return true if the value is a lowercase hex SHA-256
+     */
+    static boolean isHash(String hash) {
+        return HASH.matcher(hash).matches();
+    }
+
+    /**
+     * @param hash lowercase hex SHA-256
+     * @return location of the blob, it may not exist
+     */
+    Path path(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("not a SHA-256: " + hash);
+        }
+        return dir.resolve(hash);
+    }
+
+    /**
+     * adds a reference to a stored blob
+     *
+     * @param hash content hash
+     * @return false if there is no such blob
+     */
+    synchronized boolean retain(String hash) {
+        if (!Files.exists(path(hash))) {
+            return false;
+        }
+        references.merge(hash, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * moves a complete file into the store, or deletes it if the same content is already there,
+     * and adds a reference to the blob
+     *
+     * @param file file written by an upload
+     * @param hash SHA-256 of the file
+     * @return location of the blob
+     * @throws IOException if the file cannot be moved
+     */
+    synchronized Path store(Path file, String hash) throws IOException {
+        Path blob = path(hash);
+        if (Files.exists(blob)) {
+            Files.delete(file);
+        } else {
+            Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING);
+            bytes.addAndGet(Files.size(blob));
+        }
+        references.merge(hash, 1, Integer::sum);
+        return blob;
+    }
+
+    /**
+     * removes a reference, the blob is deleted with the last one
+     *
+     * @param hash content hash
+     * @return true if the blob is deleted
+     * @throws IOException if the blob cannot be deleted
+     */
+    synchronized boolean release(String hash) throws IOException {
+        if (!references.containsKey(hash)) {
+            return false;
+        }
+        Integer count = references.computeIfPresent(hash, (key, value) -> value > 1 ? value - 1 : null);
+        if (count == null) {
+            delete(path(hash));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * deletes blobs no file refers to
+     *
+     * @return bytes freed
+     * @throws IOException if the store cannot be listed or a blob cannot be deleted
+     */
+    synchronized long purgeOrphans() throws IOException {
+        long freed = 0;
+        try (Stream<Path> blobs = Files.list(dir)) {
+            for (Path blob : (Iterable<Path>) blobs::iterator) {
+                if (!references.containsKey(blob.getFileName().toString())) {
+                    freed += delete(blob);
+                }
+            }
+        }
+        return freed;
+    }
+
+    private long delete(Path blob) throws IOException {
+        long size = Files.exists(blob) ? Files.size(blob) : 0;
+        if (Files.deleteIfExists(blob)) {
+            bytes.addAndGet(-size);
+            return size;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,189 @@
+package server;
+
+import common.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static server.Server.logInfo;
+
+/**
+ * Connection served by its own thread in blocking mode. Frames are written directly,
+ * so a slow client makes its senders wait. Writers and paused readers wait on a {@link ReentrantLock},
+ * which unlike a monitor does not pin a virtual thread to its carrier
+ */
+class BlockingConnection extends Connection {
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * signalled when reads are resumed or the connection is closed
+     */
+    private final Condition readsResumed = lock.newCondition();
+    /**
+     * runs pings and reaps, which must not block the timer thread
+     */
+    private final ThreadFactory threadFactory;
+    /**
+     * true while a ping is being written
+     */
+    private final AtomicBoolean pinging = new AtomicBoolean();
+    /**
+     * closed, or detached for a transfer writing to the channel itself. Guarded by lock
+     */
+    private boolean closed;
+    private boolean detached;
+    /**
+     * pending read pauses, guarded by lock
+     */
+    private int readPauses;
+
+    /**
+     * @param channel       client's channel in blocking mode
+     * @param timers        timers shared by blocking connections
+     * @param threadFactory threads of the engine
+     */
+    BlockingConnection(SocketChannel channel, HashedTimerWheel timers, ThreadFactory threadFactory) {
+        super(channel, timers);
+        this.threadFactory = threadFactory;
+    }
+
+    @Override
+    boolean send(ByteBuffer data, Connection origin) {
+        lock.lock();
+        try {
+            if (closed || detached) {
+                return true;
+            }
+            while (data.hasRemaining()) {
+                getChannel().write(data);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    boolean sendBatch(ByteBuffer[] frames) {
+        lock.lock();
+        try {
+            if (closed || detached || frames.length == 0) {
+                return true;
+            }
+            while (frames[frames.length - 1].hasRemaining()) {
+                getChannel().write(frames);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    boolean sendPooled(ByteBuffer data) {
+        try {
+            return send(data, null);
+        } finally {
+            BufferPool.SHARED.release(data);
+        }
+    }
+
+    @Override
+    boolean sendStream(ByteBuffer data) {
+        return sendPooled(data);
+    }
+
+    /**
+     * writes the ping on a thread of its own. A client which does not take it closes the connection
+     * from there, the reading thread then exits
+     */
+    @Override
+    boolean ping(ByteBuffer frame) {
+        if (pinging.compareAndSet(false, true)) {
+            threadFactory.newThread(() -> {
+                if (!send(frame, null)) {
+                    try {
+                        getChannel().close();
+                    } catch (IOException e) {
+                        logInfo("cannot close " + this + " after a failed ping: " + e.getMessage());
+                    }
+                }
+                pinging.set(false);
+            }).start();
+        }
+        return true;
+    }
+
+    /**
+     * runs the disconnect on a thread of its own: telling the room writes to other clients,
+     * and one of them stalling would hold up the idle checks of every connection
+     */
+    @Override
+    void reap(Runnable disconnect) {
+        threadFactory.newThread(disconnect).start();
+    }
+
+    /**
+     * blocks the calling thread, which must be the reading one, until reads are resumed or the connection is closed
+     */
+    @Override
+    void pauseReads() {
+        lock.lock();
+        try {
+            readPauses++;
+            while (readPauses > 0 && !closed) {
+                readsResumed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void resumeReads() {
+        lock.lock();
+        try {
+            readPauses--;
+            readsResumed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * frames are written synchronously, so none is in flight once the lock is taken
+     */
+    @Override
+    void detach() {
+        lock.lock();
+        try {
+            detached = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the decoder is released by the reading thread when it exits
+     */
+    @Override
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            readsResumed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import common.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+import static server.Server.logDebug;
+import static server.Server.logInfo;
+
+/**
+ * Engine running every connection as blocking code on its own thread.
+ * Uses virtual threads when the runtime has them, platform threads otherwise
+ */
+class BlockingEngine implements ServerEngine {
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final ThreadFactory threadFactory = createThreadFactory();
+    /**
+     * idle checks of all connections, driven by the server-timer thread
+     */
+    private final HashedTimerWheel timers = new HashedTimerWheel(100, 512);
+
+    BlockingEngine(Server server) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(Server.PORT));
+        logInfo("Blocking engine");
+    }
+
+    /**
+     * accepts connections on the current thread
+     */
+    @Override
+    public void run() throws IOException {
+        Thread timerThread = new Thread(this::runTimers, "server-timer");
+        timerThread.setDaemon(true);
+        timerThread.start();
+        while (true) {
+            SocketChannel client = serverChannel.accept();
+            BlockingConnection connection = new BlockingConnection(client, timers, threadFactory);
+            server.clientConnected(connection);
+            threadFactory.newThread(() -> serve(connection)).start();
+        }
+    }
+
+    /**
+     * reads frames until the client disconnects
+     *
+     * @param connection client's connection
+     */
+    private void serve(BlockingConnection connection) {
+        boolean failed = true;
+        try {
+            while (connection.getChannel().isOpen()) {
+                int numReadBytes = connection.getChannel().read(connection.decoder.writableBuffer());
+                if (numReadBytes == -1) {
+                    logDebug("Client closed connection");
+                    failed = false;
+                    break;
+                }
+                connection.touch();
+                ReadEvent event = new ReadEvent();
+                event.begin();
+                int frames = 0;
+                Frame frame;
+                while (connection.getChannel().isOpen() && (frame = connection.decoder.next()) != null) {
+                    server.processFrame(connection, frame);
+                    frames++;
+                }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.client = connection.toString();
+                    event.bytes = numReadBytes;
+                    event.frames = frames;
+                    event.commit();
+                }
+            }
+        } catch (IOException e) {
+            logInfo("connection " + connection + " failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            logInfo("closing " + connection + " after an internal error");
+        } finally {
+            if (failed && connection.getChannel().isOpen()) {
+                server.connectionFailed(connection);
+            } else {
+                server.cleanupClientConnection(connection);
+            }
+            connection.decoder.release();
+        }
+    }
+
+    /**
+     * advances the timer wheel every tick
+     */
+    private void runTimers() {
+        try {
+            while (true) {
+                Thread.sleep(timers.getTickMillis());
+                timers.advance(System.nanoTime());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return virtual thread factory if the runtime supports it, platform threads otherwise
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            logInfo("virtual threads are not available, using platform threads");
+            return Thread::new;
+        }
+    }
+}
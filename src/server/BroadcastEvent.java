@@ -0,0 +1,26 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for fan-out of one message to subscribers of a room
+ */
+@Name("chat.Broadcast")
+@Label("Broadcast")
+@Category({"Chat", "Server"})
+@Description("Delivery of one message to every recipient")
+class BroadcastEvent extends jdk.jfr.Event {
+    @Label("Room")
+    String room;
+
+    @Label("Recipients")
+    int recipients;
+
+    @Label("Bytes Per Recipient")
+    @DataAmount
+    int bytes;
+}
@@ -0,0 +1,19 @@
+package server;
+
+import common.Frame;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Builds message wrapper from a command frame
+ */
+interface CommandParser {
+    /**
+     * @param frame      frame with the command, payload is decoded only if the command needs it
+     * @param connection client which sent the command
+     * @return message wrapper object
+     * @throws InvalidFormatException when command has invalid format
+     * @throws FileNotFoundException  when command refers to file that not exists
+     */
+    Message parse(Frame frame, Connection connection) throws InvalidFormatException, FileNotFoundException;
+}
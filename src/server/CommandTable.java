@@ -0,0 +1,91 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lookup table of slash commands. Commands are matched on raw payload bytes without decoding them,
+ * candidates are bucketed by the first letter after the slash
+ *
+ * @param <T> command handler type
+ */
+class CommandTable<T> {
+    private static final byte PREFIX = '/';
+
+    private final Entry<?>[][] buckets = new Entry<?>[256][];
+
+    /**
+     * @param command command with leading slash, e.g. /login
+     * @param handler handler of the command
+     * @throws IllegalArgumentException if the command has no leading slash or is already registered
+     */
+    void register(String command, T handler) {
+        byte[] name = command.getBytes(StandardCharsets.US_ASCII);
+        if (name.length < 2 || name[0] != PREFIX) {
+            throw new IllegalArgumentException("command must start with " + (char) PREFIX + ": " + command);
+        }
+        int bucket = name[1] & 0xff;
+        Entry<?>[] entries = buckets[bucket] == null ? new Entry<?>[0] : buckets[bucket];
+        for (Entry<?> entry : entries) {
+            if (Arrays.equals(entry.name, name)) {
+                throw new IllegalArgumentException("command is already registered: " + command);
+            }
+        }
+        entries = Arrays.copyOf(entries, entries.length + 1);
+        entries[entries.length - 1] = new Entry<>(name, handler);
+        buckets[bucket] = entries;
+    }
+
+    /**
+     * finds handler of the command the payload starts with. Command must be followed
+     * by a space, a line break or the end of the payload
+     *
+     * @param payload frame payload, position and limit are not changed
+     * @return handler or null when payload is not a registered command
+     */
+    @SuppressWarnings("unchecked")
+    T lookup(ByteBuffer payload) {
+        int start = payload.position();
+        int length = payload.remaining();
+        if (length < 2 || payload.get(start) != PREFIX) {
+            return null;
+        }
+        Entry<?>[] entries = buckets[payload.get(start + 1) & 0xff];
+        if (entries == null) {
+            return null;
+        }
+        for (Entry<?> entry : entries) {
+            if (matches(payload, start, length, entry.name)) {
+                return (T) entry.handler;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer payload, int start, int length, byte[] name) {
+        if (length < name.length) {
+            return false;
+        }
+        for (int i = 2; i < name.length; i++) {
+            if (payload.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        if (length == name.length) {
+            return true;
+        }
+        byte next = payload.get(start + name.length);
+        return next == ' ' || next == '\n' || next == '\r';
+    }
+
+    private static class Entry<T> {
+        final byte[] name;
+        final T handler;
+
+        Entry(byte[] name, T handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package server;
+
+import common.FrameDecoder;
+import common.TransferStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of one client connection shared by all server engines
+ */
+abstract class Connection {
+    final FrameDecoder decoder = new FrameDecoder();
+    private final SocketChannel channel;
+    /**
+     * user name, null until /login
+     */
+    private volatile String name;
+    /**
+     * not null while connection uploads a file
+     */
+    private volatile UploadWriter upload;
+    /**
+     * uploads multiplexed on the connection by stream id
+     */
+    private final Map<Integer, UploadWriter> streamUploads = new ConcurrentHashMap<>();
+    /**
+     * downloads multiplexed on the connection by stream id
+     */
+    private final Map<Integer, TransferStream> streamDownloads = new ConcurrentHashMap<>();
+    /**
+     * room the client talks in, null until /login
+     */
+    private volatile Room room;
+    /**
+     * true while the server sends a file over the connection
+     */
+    private volatile boolean sendingFile;
+    /**
+     * {@link System#nanoTime()} of the last read from the client
+     */
+    private volatile long lastActivity = System.nanoTime();
+    private final HashedTimerWheel timers;
+
+    /**
+     * @param channel client's channel
+     * @param timers  timers of the thread serving the connection
+     */
+    Connection(SocketChannel channel, HashedTimerWheel timers) {
+        this.channel = channel;
+        this.timers = timers;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    boolean isLoggedIn() {
+        return name != null;
+    }
+
+    UploadWriter getUpload() {
+        return upload;
+    }
+
+    void setUpload(UploadWriter upload) {
+        this.upload = upload;
+    }
+
+    Map<Integer, UploadWriter> getStreamUploads() {
+        return streamUploads;
+    }
+
+    Map<Integer, TransferStream> getStreamDownloads() {
+        return streamDownloads;
+    }
+
+    Room getRoom() {
+        return room;
+    }
+
+    void setRoom(Room room) {
+        this.room = room;
+    }
+
+    boolean isSendingFile() {
+        return sendingFile;
+    }
+
+    void setSendingFile(boolean sendingFile) {
+        this.sendingFile = sendingFile;
+    }
+
+    HashedTimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * marks the connection active, called by engines after reading from the client
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds since the last read from the client
+     */
+    long idleNanos() {
+        return System.nanoTime() - lastActivity;
+    }
+
+    /**
+     * sends frame to the client. Safe to call from any thread
+     *
+     * @param data   flipped frame bytes, must not be modified afterwards
+     * @param origin connection which produced the message, may be null
+     * @return false if the connection is broken or too slow and must be dropped
+     */
+    abstract boolean send(ByteBuffer data, Connection origin);
+
+    /**
+     * same as {@link #send(ByteBuffer, Connection)} for a buffer taken from {@link common.BufferPool#SHARED}.
+     * The connection releases it
+     *
+     * @param data flipped frame bytes
+     * @return false if the connection is broken or too slow and must be dropped
+     */
+    abstract boolean sendPooled(ByteBuffer data);
+
+    /**
+     * same as {@link #sendPooled(ByteBuffer)} for frames of a multiplexed transfer. Their amount is bounded
+     * by the stream windows, so the slow consumer policy neither drops them nor counts them
+     *
+     * @param data flipped frame bytes from {@link common.BufferPool#SHARED}
+     * @return false if the connection is broken and must be dropped
+     */
+    abstract boolean sendStream(ByteBuffer data);
+
+    /**
+     * sends several frames at once with gathering writes. Safe to call from any thread
+     *
+     * @param frames flipped frames, must not be modified afterwards
+     * @return false if the connection is broken or too slow and must be dropped
+     */
+    abstract boolean sendBatch(ByteBuffer[] frames);
+
+    /**
+     * sends a liveness probe without blocking the calling timer thread
+     *
+     * @param frame flipped frame bytes, must not be modified afterwards
+     * @return false if the connection is broken and must be dropped
+     */
+    abstract boolean ping(ByteBuffer frame);
+
+    /**
+     * disconnects a client found idle by a timer task. The disconnect tells the room, so it must not
+     * run on a timer thread shared with connections whose writes block
+     *
+     * @param disconnect closes the connection and notifies the others
+     */
+    abstract void reap(Runnable disconnect);
+
+    /**
+     * stops taking input from the client until {@link #resumeReads()}. Pauses are counted,
+     * a resume may come before its pause
+     */
+    abstract void pauseReads();
+
+    abstract void resumeReads();
+
+    /**
+     * hands the channel over to a transfer writing to it directly. Waits until the frames sent so far
+     * are written, frames sent later are dropped. Called by the transfer thread
+     */
+    abstract void detach();
+
+    /**
+     * stops sending and frees connection's resources. The channel is closed by the caller
+     */
+    abstract void close();
+
+    @Override
+    public String toString() {
+        return name != null ? name : channel.toString();
+    }
+}
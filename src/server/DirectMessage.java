@@ -0,0 +1,39 @@
+package server;
+
+/**
+ * Private message to one user
+ * command syntax is: /msg userName text
+ */
+public class DirectMessage extends Message {
+    private final String recipient;
+    private final String text;
+
+    private DirectMessage(String author, String recipient, String text) {
+        super(author);
+        this.recipient = recipient;
+        this.text = text.trim();
+    }
+
+    /**
+     * Parses DirectMessage from raw text
+     * @param text raw text from client
+     * @param author client's name
+     * @return DirectMessage object
+     * @throws InvalidFormatException when recipient or text is missing
+     */
+    public static DirectMessage parse(String text, String author) throws InvalidFormatException {
+        int recipientStart = text.indexOf(' ') + 1;
+        int recipientEnd = recipientStart == 0 ? -1 : text.indexOf(' ', recipientStart);
+        if (recipientEnd <= recipientStart) throw new InvalidFormatException(author);
+        return new DirectMessage(author, text.substring(recipientStart, recipientEnd), text.substring(recipientEnd + 1));
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    @Override
+    String getWireText() {
+        return author + " (private): " + text + "\n";
+    }
+}
@@ -1,16 +1,22 @@
 package server;
 
-import com.sun.media.sound.InvalidFormatException;
+import common.ChunkCompressor;
+import common.FileUploadTask;
+import common.TransferStream;
 
-import java.io.FileNotFoundException;
 import java.nio.file.Path;
 
 /**
  * wrapper for file messages from/to client
- * command syntax is: /file "filename"userName
+ * command syntax is: /file "filename"userName [size [offset]] [deflate] [sha256:hash] [stream:id],
+ * download request syntax is: /download fileId [offset] [deflate] [stream:id]
  */
 public class FileMessage extends Message {
     public static final int MINIMUM_COMMAND_LENGTH = 7;
+    /**
+     * longest uploaded file name in characters
+     */
+    public static final int MAX_NAME_LENGTH = 255;
     /**
      * file id. File is accessed by clients by id
      */
@@ -21,11 +27,27 @@ public class FileMessage extends Message {
      * defines if file should be downloaded or uploaded
      */
     private final boolean uploadRequest;
+    private Path filePath;
     /**
-     * file message contains meta info (command, file name, user name). Length of it in bytes
+     * file size, -1 if the sender did not tell it
      */
-    private int metaInfoLength;
-    private Path filePath;
+    private long size = -1;
+    /**
+     * position in the file the data starts from
+     */
+    private long offset;
+    /**
+     * SHA-256 of the content told by the sender, null if not known
+     */
+    private String hash;
+    /**
+     * true if the sender deflates chunks or the downloader accepts deflated chunks
+     */
+    private boolean compressed;
+    /**
+     * stream of the transfer on the chat connection, -1 if the transfer has a connection of its own
+     */
+    private int stream = -1;
 
 
     /**
@@ -47,7 +69,7 @@ public class FileMessage extends Message {
      * @param text source text
      * @param author client's name
      * @return {@link FileMessage} object
-     * @throws InvalidFormatException when command has invalid format
+     * @throws InvalidFormatException when command has invalid format or the file name is too long
      */
     public static FileMessage parse(String text, String author) throws InvalidFormatException {
         if (text.length() < MINIMUM_COMMAND_LENGTH) throw new InvalidFormatException(author);
@@ -55,44 +77,84 @@ public class FileMessage extends Message {
         boolean uploadRequest = firstQuoteIndex != -1;
         String fileName;
         int id;
-        int metaInfoLength = 0;
         String authorFromMessage = "";
+        long size = -1;
+        long offset = 0;
+        String hash = null;
+        boolean compressed = false;
+        int stream = -1;
         if (uploadRequest) {
             int secondQuoteIndex = text.indexOf("\"", firstQuoteIndex + 1);
             int metaEndIndex = text.indexOf("\n");
+            if (secondQuoteIndex == -1 || metaEndIndex < secondQuoteIndex) throw new InvalidFormatException(author);
             fileName = text.substring(firstQuoteIndex + 1, secondQuoteIndex);
-            id = FileUtils.filesCount++;
-            FileUtils.files.add(fileName);
-            metaInfoLength = text.substring(0, metaEndIndex + 1).getBytes().length;
-            authorFromMessage = text.substring(secondQuoteIndex + 1, metaEndIndex);
+            if (fileName.length() > MAX_NAME_LENGTH) throw new InvalidFormatException(author);
+            String[] meta = text.substring(secondQuoteIndex + 1, metaEndIndex).trim().split(" ");
+            authorFromMessage = meta[0];
+            int numbers = 0;
+            for (int i = 1; i < meta.length; i++) {
+                String token = meta[i];
+                if (token.startsWith(FileUploadTask.HASH_PREFIX)) {
+                    hash = token.substring(FileUploadTask.HASH_PREFIX.length());
+                    if (!BlobStore.isHash(hash)) throw new InvalidFormatException(author);
+                } else if (token.startsWith(TransferStream.TOKEN_PREFIX)) {
+                    stream = Integer.parseInt(token.substring(TransferStream.TOKEN_PREFIX.length()));
+                } else if (ChunkCompressor.TOKEN.equals(token)) {
+                    compressed = true;
+                } else if (numbers++ == 0) {
+                    size = Long.parseLong(token);
+                } else {
+                    offset = Long.parseLong(token);
+                }
+            }
+            // id is given when the file is stored
+            id = -1;
         } else {
+            if (text.indexOf(";") < text.indexOf(" ")) throw new InvalidFormatException(author);
             String indexStr = text.substring(text.indexOf(" ") + 1, text.indexOf(";"));
-            int index = Integer.parseInt(indexStr);
-            fileName = FileUtils.files.get(index);
-            id = index;
+            id = Integer.parseInt(indexStr);
+            // resolved by the server from its file registry
+            fileName = null;
         }
         FileMessage fileMessage = new FileMessage(author == null ? authorFromMessage : author, fileName, uploadRequest, id);
-        fileMessage.metaInfoLength = metaInfoLength;
+        fileMessage.size = size;
+        fileMessage.offset = offset;
+        fileMessage.hash = hash;
+        fileMessage.compressed = compressed;
+        fileMessage.stream = stream;
         return fileMessage;
     }
 
     /**
-     * Parses object from download request (/download fileId)
+     * Parses object from download request (/download fileId [offset] [deflate] [stream:id]).
+     * The file is looked up by the server
      * @param text command text
      * @param author client's name
      * @return {@link FileMessage} object
-     * @throws FileNotFoundException when file with specified id is not present
      */
-    public static FileMessage parseDownloadRequest(String text, String author) throws FileNotFoundException {
-        String indexStr = text.substring(text.indexOf(" ") + 1);
-        Integer index = Integer.parseInt(indexStr.trim());
-        if (index < 0 || index > FileUtils.filesCount) {
-            throw new FileNotFoundException(author);
+    public static FileMessage parseDownloadRequest(String text, String author) {
+        String[] args = text.trim().split("\\s+");
+        int index = -1;
+        long offset = 0;
+        boolean compressed = false;
+        int stream = -1;
+        int numbers = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith(TransferStream.TOKEN_PREFIX)) {
+                stream = Integer.parseInt(args[i].substring(TransferStream.TOKEN_PREFIX.length()));
+            } else if (ChunkCompressor.TOKEN.equals(args[i])) {
+                compressed = true;
+            } else if (numbers++ == 0) {
+                index = Integer.parseInt(args[i]);
+            } else {
+                offset = Long.parseLong(args[i]);
+            }
         }
-        Path filePath = FileUtils.filePaths.get(index);
-        String fileName = FileUtils.files.get(index);
-        FileMessage fileMessage = new FileMessage(author, fileName, false, index);
-        fileMessage.setFilePath(filePath);
+        if (numbers == 0) throw new NumberFormatException("file id is missing");
+        FileMessage fileMessage = new FileMessage(author, null, false, index);
+        fileMessage.offset = Math.max(0, offset);
+        fileMessage.compressed = compressed;
+        fileMessage.stream = stream;
         return fileMessage;
     }
 
@@ -112,13 +174,8 @@ public class FileMessage extends Message {
         return uploadRequest;
     }
 
-    public int getMetaInfoLength() {
-        return metaInfoLength;
-    }
-
     public void setFilePath(Path filePath) {
         this.filePath = filePath;
-        FileUtils.filePaths.put(id, filePath);
     }
 
     public Path getFilePath() {
@@ -129,10 +186,34 @@ public class FileMessage extends Message {
         return parse(message, Server.serverName);
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public int getStream() {
+        return stream;
+    }
+
     public int getId() {
         return id;
     }
 
+    void setId(int id) {
+        this.id = id;
+    }
+
     /**
      *
      * @return text for history command
@@ -140,4 +221,9 @@ public class FileMessage extends Message {
     public String getMessageText(){
         return String.format("%s: %d", getFileName(), id);
     }
+
+    @Override
+    String getWireText() {
+        return getMessageText() + "\n";
+    }
 }
@@ -0,0 +1,244 @@
+package server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static server.Server.logInfo;
+
+/**
+ * Uploaded files by id. Ids are allocated atomically and lookups do not lock, so any thread may use the registry.
+ * Every file is appended to an index file read back at startup.
+ * Record layout: body length (4 bytes), CRC32 of body (4 bytes), body. Body: id (4 bytes), size (8 bytes),
+ * upload time in epoch ms (8 bytes), SHA-256 (32 bytes), name, uploader and room it was announced in, each as
+ * length (2 bytes) and UTF-8. A body of only an id is a tombstone of a removed file
+ */
+class FileRegistry {
+    private static final Path INDEX = Paths.get(System.getProperty("server.files.index", "files.idx"));
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int HASH_SIZE = 32;
+    private static final int TOMBSTONE_SIZE = 4;
+    /**
+     * longest name, uploader or room in UTF-8 bytes, their lengths are stored in two bytes
+     */
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private final ConcurrentMap<Integer, FileRecord> files = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final FileChannel index;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * opens the index in server.files.index and loads files from it
+     *
+     * @throws IOException if the index cannot be opened
+     */
+    FileRegistry() throws IOException {
+        this(INDEX);
+    }
+
+    FileRegistry(Path path) throws IOException {
+        index = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load(path);
+    }
+
+    /**
+     * reads records up to the first torn, corrupt or unreadable one, which is cut off
+     */
+    private void load(Path path) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32 check = new CRC32();
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int bodyLength = data.getInt(data.position());
+            if (bodyLength <= 0 || bodyLength > data.remaining() - RECORD_HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer body = data.slice(data.position() + RECORD_HEADER_SIZE, bodyLength);
+            check.reset();
+            check.update(body.duplicate());
+            if ((int) check.getValue() != data.getInt(data.position() + 4)) {
+                break;
+            }
+            if (bodyLength == TOMBSTONE_SIZE) {
+                files.remove(body.getInt());
+            } else {
+                FileRecord record;
+                try {
+                    record = FileRecord.decode(body);
+                } catch (BufferUnderflowException e) {
+                    break;
+                }
+                files.put(record.id, record);
+                nextId.accumulateAndGet(record.id + 1, Math::max);
+            }
+            data.position(data.position() + RECORD_HEADER_SIZE + bodyLength);
+        }
+        if (data.hasRemaining()) {
+            logInfo(String.format("file index: dropping %d bytes from a torn or unreadable record", data.remaining()));
+            index.truncate(data.position());
+        }
+        index.position(data.position());
+        logInfo(String.format("file index loaded: %d files, %d ms", files.size(), (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * allocates an id for a stored file and writes it to the index
+     *
+     * @param name     file name given by the uploader
+     * @param uploader client's name
+     * @param room     room the file is announced in
+     * @param size     file size
+     * @param hash     SHA-256 of the content, also the blob name
+     * @return new record
+     * @throws IOException if a name is too long for the index or the index cannot be written,
+     *                     the file is not registered then
+     */
+    FileRecord register(String name, String uploader, String room, long size, String hash) throws IOException {
+        for (String string : new String[]{name, uploader, room}) {
+            if (string != null && string.getBytes(StandardCharsets.UTF_8).length > MAX_STRING_LENGTH) {
+                throw new IOException("name of " + string.length() + " characters is too long for the file index");
+            }
+        }
+        FileRecord record = new FileRecord(nextId.getAndIncrement(), name, uploader, room, size, hash,
+                System.currentTimeMillis());
+        append(record.encode());
+        files.put(record.id, record);
+        return record;
+    }
+
+    /**
+     * removes a file and writes its tombstone to the index
+     *
+     * @param id file id
+     * @return false if there is no such file, e.g. it is removed already
+     * @throws IOException if the index cannot be written, the file is removed until restart then
+     */
+    boolean remove(int id) throws IOException {
+        if (files.remove(id) == null) {
+            return false;
+        }
+        append(ByteBuffer.allocate(TOMBSTONE_SIZE).putInt(id).flip());
+        return true;
+    }
+
+    private synchronized void append(ByteBuffer body) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        crc.reset();
+        crc.update(body.duplicate());
+        header.putInt(body.remaining()).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] buffers = {header, body};
+        while (body.hasRemaining()) {
+            index.write(buffers);
+        }
+        index.force(false);
+    }
+
+    /**
+     * @param id file id
+     * @return file or null if there is no such file
+     */
+    FileRecord get(int id) {
+        return files.get(id);
+    }
+
+    /**
+     * @return live view of all files
+     */
+    Collection<FileRecord> records() {
+        return files.values();
+    }
+
+    /**
+     * stored file and its metadata
+     */
+    static final class FileRecord {
+        final int id;
+        final String name;
+        final String uploader;
+        /**
+         * room the upload was announced in
+         */
+        final String room;
+        final long size;
+        final String hash;
+        /**
+         * upload time, epoch ms
+         */
+        final long created;
+        /**
+         * last upload or download, epoch ms. Not persisted, starts from the upload time
+         */
+        private volatile long lastAccess;
+
+        private FileRecord(int id, String name, String uploader, String room, long size, String hash, long created) {
+            this.id = id;
+            this.name = name;
+            this.uploader = uploader;
+            this.room = room;
+            this.size = size;
+            this.hash = hash;
+            this.created = created;
+            this.lastAccess = created;
+        }
+
+        /**
+         * @return name clients save the file under: uploader_name
+         */
+        String getDownloadName() {
+            return String.format("%s_%s", uploader, name);
+        }
+
+        long getLastAccess() {
+            return lastAccess;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        private ByteBuffer encode() {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] uploaderBytes = uploader.getBytes(StandardCharsets.UTF_8);
+            byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer body = ByteBuffer.allocate(4 + 8 + 8 + HASH_SIZE + 2 + nameBytes.length + 2 + uploaderBytes.length
+                    + 2 + roomBytes.length);
+            body.putInt(id).putLong(size).putLong(created).put(HexFormat.of().parseHex(hash));
+            body.putShort((short) nameBytes.length).put(nameBytes);
+            body.putShort((short) uploaderBytes.length).put(uploaderBytes);
+            body.putShort((short) roomBytes.length).put(roomBytes);
+            return body.flip();
+        }
+
+        private static FileRecord decode(ByteBuffer body) {
+            int id = body.getInt();
+            long size = body.getLong();
+            long created = body.getLong();
+            byte[] hash = new byte[HASH_SIZE];
+            body.get(hash);
+            String name = readString(body);
+            String uploader = readString(body);
+            String room = readString(body);
+            return new FileRecord(id, name, uploader, room, size,
+                    HexFormat.of().formatHex(hash), created);
+        }
+
+        private static String readString(ByteBuffer body) {
+            byte[] bytes = new byte[body.getShort() & 0xFFFF];
+            body.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
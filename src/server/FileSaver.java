@@ -1,19 +1,49 @@
 package server;
 
+import common.BufferPool;
+import common.FileUploadTask;
+
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Class to save files from opened SocketChannel
  */
 public class FileSaver {
+    /**
+     * bytes of the kept part mapped at once while hashing it
+     */
+    private static final long HASH_CHUNK = 64 * 1024 * 1024;
     private Path destinationPath;
-    private final OutputStream outputStream;
+    private final FileChannel fileChannel;
     private FileMessage message;
+    /**
+     * size of the file including bytes kept from a previous transfer
+     */
+    private volatile long written;
+    /**
+     * bytes kept from a previous transfer, hashed from the file when the digest is created
+     */
+    private long offset;
+    private boolean hashing;
+    /**
+     * SHA-256 of the written bytes, created on first use
+     */
+    private MessageDigest digest;
+    /**
+     * inflates chunks of a compressed transfer, null if chunks come raw
+     */
+    private Inflater inflater;
 
     /**
      *
@@ -23,24 +53,99 @@ public class FileSaver {
     public FileSaver(String fileName) throws IOException {
         destinationPath = Paths.get(fileName);
         tryDeleteExisting(destinationPath);
-        outputStream = Files.newOutputStream(destinationPath);
+        fileChannel = FileChannel.open(destinationPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
     }
 
     /**
+     * continues an interrupted transfer
      *
-     * @param buffer containing file's byte data
+     * @param path   destination file
+     * @param offset bytes of the existing file to keep, the rest is discarded
+     * @throws IOException if the file is not writable or shorter than offset
      */
-    public void save(ByteBuffer buffer) {
+    public FileSaver(Path path, long offset) throws IOException {
+        destinationPath = path;
+        fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (fileChannel.size() < offset) {
+            fileChannel.close();
+            throw new IOException(String.format("%s has only %d bytes, cannot continue from %d", path, fileChannel.size(), offset));
+        }
+        fileChannel.truncate(offset);
+        fileChannel.position(offset);
+        written = offset;
+        this.offset = offset;
+    }
+
+    /**
+     * chunks passed to {@link #save(ByteBuffer)} are deflated, each one separately
+     */
+    public void setCompressed() {
+        inflater = new Inflater();
+    }
+
+    /**
+     * hashes the content while it is written, see {@link #getHash()}
+     */
+    public void computeHash() {
+        hashing = true;
+    }
+
+    /**
+     *
+     * @param buffer containing file's byte data between position and limit
+     * @throws IOException if the chunk is malformed or cannot be written, the file keeps the bytes written before
+     */
+    public void save(ByteBuffer buffer) throws IOException {
+        FileWriteEvent event = new FileWriteEvent();
+        event.begin();
+        ByteBuffer data = null;
         try {
-            outputStream.write(buffer.array());
-            outputStream.flush();
-        } catch (IOException e) {
-            try {
-                outputStream.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+            data = inflater != null ? inflate(buffer) : buffer;
+            int bytes = data.remaining();
+            if (hashing) {
+                digest().update(data.duplicate());
+            }
+            while (data.hasRemaining()) {
+                fileChannel.write(data);
+            }
+            written += bytes;
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = destinationPath.toString();
+                event.bytes = bytes;
+                event.commit();
+            }
+        } finally {
+            if (data != null && data != buffer) {
+                BufferPool.SHARED.release(data);
+            }
+        }
+    }
+
+    /**
+     * @param chunk complete deflate stream of one chunk
+     * @return pooled buffer with the raw chunk
+     * @throws IOException if the chunk is not a valid stream or inflates over the chunk size
+     */
+    private ByteBuffer inflate(ByteBuffer chunk) throws IOException {
+        ByteBuffer out = BufferPool.SHARED.acquire(FileUploadTask.CHUNK_SIZE);
+        boolean inflated = false;
+        try {
+            inflater.reset();
+            inflater.setInput(chunk.duplicate());
+            while (!inflater.finished()) {
+                if (inflater.inflate(out) == 0 && (inflater.needsInput() || !out.hasRemaining())) {
+                    throw new IOException("malformed compressed chunk");
+                }
+            }
+            inflated = true;
+            return out.flip();
+        } catch (DataFormatException e) {
+            throw new IOException("malformed compressed chunk", e);
+        } finally {
+            if (!inflated) {
+                BufferPool.SHARED.release(out);
             }
-            e.printStackTrace();
         }
     }
 
@@ -49,11 +154,13 @@ public class FileSaver {
      */
     public void finish() {
         try {
-            outputStream.flush();
-            outputStream.close();
+            fileChannel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (inflater != null) {
+            inflater.end();
+        }
     }
 
     private void tryDeleteExisting(Path destinationPath) {
@@ -64,6 +171,39 @@ public class FileSaver {
         }
     }
 
+    /**
+     * @return lowercase hex SHA-256 of the file, call after {@link #finish()}
+     * @throws IOException if the kept part of the file cannot be read
+     */
+    public String getHash() throws IOException {
+        return HexFormat.of().formatHex(digest().digest());
+    }
+
+    private MessageDigest digest() throws IOException {
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            if (offset > 0) {
+                try (FileChannel kept = FileChannel.open(destinationPath, StandardOpenOption.READ)) {
+                    for (long position = 0; position < offset; position += HASH_CHUNK) {
+                        digest.update(kept.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_CHUNK, offset - position)));
+                    }
+                }
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * @return bytes in the file so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
     public Path getPath() {
         return destinationPath;
     }
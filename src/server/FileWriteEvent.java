@@ -0,0 +1,23 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one chunk written by {@link FileSaver}
+ */
+@Name("chat.FileWrite")
+@Label("File Write")
+@Category({"Chat", "Files"})
+@Description("Chunk of uploaded file written to disk")
+class FileWriteEvent extends jdk.jfr.Event {
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+}
@@ -0,0 +1,19 @@
+package server;
+
+/**
+ * When appended history records are forced to disk
+ */
+enum FsyncPolicy {
+    /**
+     * after every record, nothing is lost on power failure
+     */
+    ALWAYS,
+    /**
+     * all records appended during an interval are forced together by a background thread
+     */
+    BATCH,
+    /**
+     * never forced explicitly, the OS writes dirty pages back when it decides to
+     */
+    OS
+}
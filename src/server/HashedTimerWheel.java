@@ -0,0 +1,154 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed wheel of timers driven by its owner thread through {@link #advance(long)}.
+ * Scheduling costs O(1) regardless of the number of timers, precision is one tick
+ */
+class HashedTimerWheel {
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] slots;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    /**
+     * timers scheduled since the last advance, may be added from any thread
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * number of processed ticks
+     */
+    private long tick;
+    /**
+     * timers in slots, owner thread only
+     */
+    private int size;
+
+    /**
+     * @param tickMillis timer precision
+     * @param wheelSize  number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    HashedTimerWheel(long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int slotCount = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        slots = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        mask = slotCount - 1;
+    }
+
+    /**
+     * schedules task, safe to call from any thread. The task runs on the thread calling {@link #advance(long)}
+     *
+     * @param task  task to run
+     * @param delay delay before running
+     * @param unit  unit of delay
+     * @return handle to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return true if there are no timers, so the owner may sleep without a timeout
+     */
+    boolean isEmpty() {
+        return size == 0 && pending.isEmpty();
+    }
+
+    long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * runs every task whose deadline passed, called by the owner thread
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    void advance(long now) {
+        long targetTick = (now - startTime) / tickNanos;
+        if (size == 0) {
+            tick = Math.max(tick, targetTick);
+        }
+        while (tick < targetTick) {
+            // rounds are counted from the last processed tick, so timers go in before the tick moves
+            transferPending();
+            tick++;
+            expire(slots[(int) (tick & mask)]);
+        }
+        transferPending();
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long deadlineTick = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick + 1);
+            timeout.rounds = (deadlineTick - tick - 1) / slots.length;
+            slots[(int) (deadlineTick & mask)].add(timeout);
+            size++;
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> slot) {
+        Iterator<Timeout> iterator = slot.iterator();
+        Queue<Timeout> expired = null;
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+                size--;
+            } else if (timeout.rounds == 0) {
+                iterator.remove();
+                size--;
+                if (expired == null) {
+                    expired = new ArrayDeque<>();
+                }
+                expired.add(timeout);
+            } else {
+                timeout.rounds--;
+            }
+        }
+        if (expired != null) {
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * handle of a scheduled task
+     */
+    static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * the task will not run, its slot is cleaned lazily
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
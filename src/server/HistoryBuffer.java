@@ -0,0 +1,255 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded history of a room kept as encoded frames. Frames are appended back to back into large
+ * direct chunks, so a page of history is sent as one buffer per chunk it spans. The latest
+ * messages are tracked in a ring, chunks holding only overwritten messages are dropped.
+ * The ring and the chunks start small and grow with the history, so a quiet room costs little.
+ * Every appended message gets the next id of the room
+ */
+class HistoryBuffer {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MIN_SLOTS = 16;
+
+    /**
+     * number of messages kept once the ring is full
+     */
+    private final int capacity;
+    /**
+     * chunk sequence number, offset in the chunk and frame length of every kept message by ring slot.
+     * Grow up to the capacity. A negative sequence number marks an id missing from the recovered log
+     */
+    private long[] chunkSeqs;
+    private int[] offsets;
+    private int[] lengths;
+    /**
+     * chunks in append order, the last one is being filled. Guarded by this
+     */
+    private final List<Chunk> chunks = new ArrayList<>();
+    /**
+     * sequence number of the first chunk in {@link #chunks}
+     */
+    private long firstChunkSeq;
+    /**
+     * id of the first appended message and of the next one. Guarded by this
+     */
+    private long startId;
+    private long nextId;
+
+    /**
+     * receives messages leaving the ring, oldest first
+     */
+    interface Evictions {
+        /**
+         * @param id    id of the message
+         * @param frame its frame, valid during the call only
+         */
+        void evicted(long id, ByteBuffer frame);
+    }
+
+    /**
+     * @param capacity number of messages kept
+     * @param firstId  id of the first appended message
+     */
+    HistoryBuffer(int capacity, long firstId) {
+        this.capacity = Math.max(capacity, 1);
+        int slots = Math.min(this.capacity, MIN_SLOTS);
+        chunkSeqs = new long[slots];
+        offsets = new int[slots];
+        lengths = new int[slots];
+        startId = nextId = firstId;
+    }
+
+    /**
+     * @return id the next appended message gets
+     */
+    synchronized long nextId() {
+        return nextId;
+    }
+
+    /**
+     * copies frame of the message with id {@link #nextId()} into the current chunk
+     *
+     * @param frame     encoded frame, its position is not changed
+     * @param evictions told about the message leaving the ring once it is full
+     */
+    synchronized void append(ByteBuffer frame, Evictions evictions) {
+        ensureSlots(nextId - startId + 1);
+        long oldest = nextId - chunkSeqs.length;
+        if (oldest >= startId) {
+            evict(oldest, evictions);
+        }
+        int length = frame.remaining();
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.data.remaining() < length) {
+            int size = chunk == null ? MIN_CHUNK_SIZE : Math.min(CHUNK_SIZE, chunk.data.capacity() * 2);
+            chunk = new Chunk(nextId, Math.max(size, length));
+            chunks.add(chunk);
+        }
+        int slot = (int) (nextId % chunkSeqs.length);
+        chunkSeqs[slot] = firstChunkSeq + chunks.size() - 1;
+        offsets[slot] = chunk.data.position();
+        lengths[slot] = length;
+        chunk.data.put(frame.duplicate());
+        nextId++;
+        // chunks whose messages all fell out of the ring
+        while (chunks.size() > 1 && chunks.get(1).firstId <= firstId()) {
+            chunks.remove(0);
+            firstChunkSeq++;
+        }
+    }
+
+    private void evict(long id, Evictions evictions) {
+        if (chunkSeqs[(int) (id % chunkSeqs.length)] >= 0) {
+            evictions.evicted(id, read(id, id + 1)[0]);
+        }
+    }
+
+    /**
+     * grows the ring until it holds the number of messages or reaches the capacity
+     */
+    private void ensureSlots(long count) {
+        while (count > chunkSeqs.length && chunkSeqs.length < capacity) {
+            grow();
+        }
+    }
+
+    /**
+     * doubles the ring, moving kept messages to their slots in the larger one
+     */
+    private void grow() {
+        int slots = (int) Math.min(capacity, chunkSeqs.length * 2L);
+        long[] newChunkSeqs = new long[slots];
+        int[] newOffsets = new int[slots];
+        int[] newLengths = new int[slots];
+        for (long id = firstId(); id < nextId; id++) {
+            int from = (int) (id % chunkSeqs.length);
+            int to = (int) (id % slots);
+            newChunkSeqs[to] = chunkSeqs[from];
+            newOffsets[to] = offsets[from];
+            newLengths[to] = lengths[from];
+        }
+        chunkSeqs = newChunkSeqs;
+        offsets = newOffsets;
+        lengths = newLengths;
+    }
+
+    /**
+     * stores a message recovered from the log. Ids the log skipped stay empty, so the messages
+     * previously kept in their slots are not served in place of them
+     *
+     * @param evictions told about the messages leaving the ring, a gap in the ids may push out several
+     */
+    synchronized void restore(long id, ByteBuffer frame, Evictions evictions) {
+        if (nextId == startId || id < startId) {
+            startId = id;
+        } else if (id > nextId) {
+            ensureSlots(id - startId + 1);
+            for (long kept = firstId(); kept < Math.min(nextId, id - chunkSeqs.length); kept++) {
+                evict(kept, evictions);
+            }
+            for (long skipped = Math.max(nextId, id - chunkSeqs.length); skipped < id; skipped++) {
+                chunkSeqs[(int) (skipped % chunkSeqs.length)] = -1;
+            }
+        }
+        nextId = id;
+        append(frame, evictions);
+    }
+
+    /**
+     * @param count maximal number of messages
+     * @return latest messages, one read-only buffer per chunk, oldest first
+     */
+    synchronized ByteBuffer[] last(int count) {
+        return read(Math.max(firstId(), nextId - count), nextId);
+    }
+
+    /**
+     * @param id    id of the last message the client has seen
+     * @param count maximal number of messages
+     * @return messages after the id, one read-only buffer per chunk, oldest first
+     */
+    synchronized ByteBuffer[] since(long id, int count) {
+        long from = Math.max(firstId(), id + 1);
+        return read(from, Math.min(nextId, from + count));
+    }
+
+    /**
+     * @param ids ascending message ids, ids which left the ring are skipped
+     * @return messages, one read-only buffer per run of consecutive ids in a chunk
+     */
+    synchronized ByteBuffer[] get(long[] ids) {
+        List<ByteBuffer> slices = new ArrayList<>();
+        int i = 0;
+        while (i < ids.length) {
+            long from = ids[i++];
+            long to = from + 1;
+            while (i < ids.length && ids[i] == to) {
+                i++;
+                to++;
+            }
+            from = Math.max(from, firstId());
+            if (from < to) {
+                slices.addAll(Arrays.asList(read(from, to)));
+            }
+        }
+        return slices.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * @return id of the oldest kept message
+     */
+    private long firstId() {
+        return Math.max(startId, nextId - chunkSeqs.length);
+    }
+
+    /**
+     * frames of consecutive messages in a chunk are contiguous, so every chunk gives one slice. Empty slots are skipped
+     */
+    private ByteBuffer[] read(long from, long to) {
+        List<ByteBuffer> slices = new ArrayList<>();
+        long id = from;
+        while (id < to) {
+            int slot = (int) (id % chunkSeqs.length);
+            long seq = chunkSeqs[slot];
+            if (seq < 0) {
+                id++;
+                continue;
+            }
+            int start = offsets[slot];
+            int end = start + lengths[slot];
+            id++;
+            while (id < to && chunkSeqs[(int) (id % chunkSeqs.length)] == seq) {
+                int next = (int) (id % chunkSeqs.length);
+                end = offsets[next] + lengths[next];
+                id++;
+            }
+            slices.add(chunks.get((int) (seq - firstChunkSeq)).readOnly.slice(start, end - start));
+        }
+        return slices.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * direct buffer with frames of consecutive messages
+     */
+    private static class Chunk {
+        /**
+         * id of the first message in the chunk
+         */
+        final long firstId;
+        final ByteBuffer data;
+        final ByteBuffer readOnly;
+
+        Chunk(long firstId, int capacity) {
+            this.firstId = firstId;
+            data = ByteBuffer.allocateDirect(capacity);
+            readOnly = data.asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static server.Server.logInfo;
+
+/**
+ * Append-only log of history records on memory-mapped segment files.
+ * Record layout: body length (4 bytes), CRC32 of body (4 bytes), body. Body: room name length (2 bytes, unsigned),
+ * room name in UTF-8, message id in the room (8 bytes), frame type (1 byte) and payload of the message.
+ * The frame header is not stored, so the log outlives protocol version changes.
+ * Every segment has an index file with the end offset of each record, so recovery only checks
+ * the records written after the last indexed one. Recovery of a segment stops at the first record
+ * it cannot parse, as after a torn write.
+ * Only the last {@code server.history.retention} segments are kept, older ones are deleted when a new one starts.
+ * Only the segment being appended to stays mapped after recovery
+ */
+class HistoryLog {
+    private static final Path DIRECTORY = Paths.get(System.getProperty("server.history.dir", "history"));
+    private static final int SEGMENT_SIZE = Integer.getInteger("server.history.segmentSize", 64 * 1024 * 1024);
+    private static final FsyncPolicy FSYNC_POLICY =
+            FsyncPolicy.valueOf(System.getProperty("server.history.fsync", FsyncPolicy.BATCH.name()));
+    /**
+     * period of group commits with {@link FsyncPolicy#BATCH}, ms
+     */
+    private static final long FSYNC_INTERVAL = Long.getLong("server.history.fsyncInterval", 100);
+    /**
+     * number of segments kept, 0 keeps all
+     */
+    private static final int RETENTION = Integer.getInteger("server.history.retention", 16);
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * smallest possible record: header, empty room name, id and frame type
+     */
+    private static final int MIN_RECORD_SIZE = RECORD_HEADER_SIZE + 2 + 8 + 1;
+    private static final int MAX_ROOM_LENGTH = 0xFFFF;
+
+    /**
+     * receives records found during recovery
+     */
+    interface Visitor {
+        /**
+         * @param room  room name
+         * @param id    message id in the room
+         * @param frame frame of the message encoded with the current protocol version, valid during the call only
+         */
+        void record(String room, long id, ByteBuffer frame);
+    }
+
+    /**
+     * numbers of the full segments, oldest first, and the segment appended to. Guarded by this
+     */
+    private final Deque<Integer> fullSegments = new ArrayDeque<>();
+    private Segment segment;
+    /**
+     * forces full segments and deletes expired ones, away from the threads appending records
+     */
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "history-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CRC32 crc = new CRC32();
+    /**
+     * true when records were appended since the last group commit. Guarded by this
+     */
+    private boolean dirty;
+
+    /**
+     * opens the log, creating the directory if needed, and deletes segments beyond the retention.
+     * Existing segments are recovered by {@link #recover(Visitor)}
+     *
+     * @throws IOException if segments cannot be opened
+     */
+    HistoryLog() throws IOException {
+        Files.createDirectories(DIRECTORY);
+        List<Integer> numbers = new ArrayList<>();
+        try (Stream<Path> list = Files.list(DIRECTORY)) {
+            list.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("\\d{8}\\.log"))
+                    .map(name -> Integer.parseInt(name.substring(0, 8)))
+                    .sorted()
+                    .forEach(numbers::add);
+        }
+        fullSegments.addAll(numbers);
+        segment = new Segment(numbers.isEmpty() ? 0 : fullSegments.pollLast());
+        deleteSegments(expiredSegments());
+        if (FSYNC_POLICY == FsyncPolicy.BATCH) {
+            Thread thread = new Thread(this::runGroupCommits, "history-sync");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * finds the valid end of every kept segment and reports all records in the log order.
+     * Full segments are mapped only while they are read
+     *
+     * @param visitor receiver of records
+     */
+    synchronized void recover(Visitor visitor) {
+        long start = System.nanoTime();
+        long records = 0;
+        ByteBuffer frame = ByteBuffer.allocate(0);
+        List<Segment> recovered = new ArrayList<>();
+        for (int number : fullSegments) {
+            try {
+                recovered.add(new Segment(number));
+            } catch (IOException e) {
+                logInfo(String.format("history segment %d skipped: %s", number, e));
+            }
+        }
+        recovered.add(segment);
+        for (Segment part : recovered) {
+            part.recover();
+            records += part.count;
+            for (int i = 0; i < part.count; i++) {
+                int offset = i == 0 ? 0 : part.index.getInt((i - 1) * 4);
+                ByteBuffer data = part.data;
+                int bodyLength = data.getInt(offset);
+                if (!part.isParsable(offset, bodyLength)) {
+                    logInfo(String.format("history segment %d truncated at unreadable record %d", part.number, i));
+                    records -= part.count - i;
+                    part.truncate(i);
+                    break;
+                }
+                int roomLength = data.getShort(offset + RECORD_HEADER_SIZE) & MAX_ROOM_LENGTH;
+                byte[] room = new byte[roomLength];
+                data.get(offset + RECORD_HEADER_SIZE + 2, room);
+                int idOffset = offset + RECORD_HEADER_SIZE + 2 + roomLength;
+                frame = frame(frame, part, idOffset + 8, offset + RECORD_HEADER_SIZE + bodyLength);
+                try {
+                    visitor.record(new String(room, StandardCharsets.UTF_8), data.getLong(idOffset), frame);
+                } catch (RuntimeException e) {
+                    logInfo(String.format("history record %d of segment %d skipped: %s", i, part.number, e));
+                }
+            }
+        }
+        logInfo(String.format("history recovered: %d records in %d segments, %d ms",
+                records, recovered.size(), (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * encodes a stored message as a frame of the current protocol version
+     *
+     * @param buffer     buffer to reuse if it is large enough
+     * @param segment    segment of the record
+     * @param typeOffset offset of the frame type in the segment
+     * @param end        end offset of the record
+     * @return flipped buffer with the frame
+     */
+    private static ByteBuffer frame(ByteBuffer buffer, Segment segment, int typeOffset, int end) {
+        int payloadLength = end - typeOffset - 1;
+        if (buffer.capacity() < common.Frame.HEADER_SIZE + payloadLength) {
+            buffer = ByteBuffer.allocate(common.Frame.HEADER_SIZE + payloadLength);
+        }
+        buffer.clear();
+        common.Frame.writeHeader(buffer, segment.data.get(typeOffset), payloadLength);
+        return buffer.put(segment.readOnly.slice(typeOffset + 1, payloadLength)).flip();
+    }
+
+    /**
+     * appends a record, forcing it to disk according to the policy
+     *
+     * @param room  room name
+     * @param id    message id in the room
+     * @param frame encoded frame of the message, only its type and payload are stored
+     * @throws IOException if the record does not fit into a segment, the room name is too long
+     *                     or a new segment cannot be created
+     */
+    synchronized void append(String room, long id, ByteBuffer frame) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length > MAX_ROOM_LENGTH) {
+            throw new IOException("room name of " + roomBytes.length + " bytes is too long for the history log");
+        }
+        ByteBuffer payload = frame.duplicate().position(frame.position() + common.Frame.HEADER_SIZE);
+        int bodyLength = 2 + roomBytes.length + 8 + 1 + payload.remaining();
+        int recordLength = RECORD_HEADER_SIZE + bodyLength;
+        // room for the end marker after the record
+        if (recordLength + 4 > SEGMENT_SIZE) {
+            throw new IOException("history record of " + recordLength + " bytes does not fit into a segment");
+        }
+        if (segment.end + recordLength + 4 > SEGMENT_SIZE || segment.count == segment.capacity()) {
+            startSegment();
+        }
+        int offset = segment.end;
+        ByteBuffer data = segment.data;
+        data.position(offset + RECORD_HEADER_SIZE);
+        data.putShort((short) roomBytes.length);
+        data.put(roomBytes);
+        data.putLong(id);
+        data.put(frame.get(frame.position() + 1));
+        data.put(payload);
+        data.putInt(offset + recordLength, 0);
+        crc.reset();
+        crc.update(data.duplicate().position(offset + RECORD_HEADER_SIZE).limit(offset + recordLength));
+        data.putInt(offset + 4, (int) crc.getValue());
+        data.putInt(offset, bodyLength);
+        segment.index.putInt(segment.count * 4, offset + recordLength);
+        segment.count++;
+        segment.end = offset + recordLength;
+        if (FSYNC_POLICY == FsyncPolicy.ALWAYS) {
+            segment.data.force(offset, recordLength);
+            segment.index.force((segment.count - 1) * 4, 4);
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * continues the log in a new segment. The full one is forced and segments beyond the retention
+     * are deleted by the maintenance thread
+     */
+    private void startSegment() throws IOException {
+        Segment full = segment;
+        segment = new Segment(full.number + 1);
+        fullSegments.addLast(full.number);
+        List<Integer> expired = expiredSegments();
+        maintenance.execute(() -> {
+            if (FSYNC_POLICY == FsyncPolicy.BATCH) {
+                full.force();
+            }
+            deleteSegments(expired);
+        });
+    }
+
+    /**
+     * @return numbers of the oldest full segments beyond the retention, removed from the log
+     */
+    private List<Integer> expiredSegments() {
+        List<Integer> expired = new ArrayList<>();
+        while (RETENTION > 0 && fullSegments.size() + 1 > RETENTION) {
+            expired.add(fullSegments.pollFirst());
+        }
+        return expired;
+    }
+
+    /**
+     * a segment still mapped, as on Windows, stays until the next start
+     */
+    private static void deleteSegments(List<Integer> numbers) {
+        for (int number : numbers) {
+            String name = String.format("%08d", number);
+            try {
+                Files.deleteIfExists(DIRECTORY.resolve(name + ".log"));
+                Files.deleteIfExists(DIRECTORY.resolve(name + ".idx"));
+                logInfo("history segment " + number + " deleted");
+            } catch (IOException e) {
+                logInfo(String.format("history segment %d not deleted: %s", number, e));
+            }
+        }
+    }
+
+    private void runGroupCommits() {
+        try {
+            while (true) {
+                Thread.sleep(FSYNC_INTERVAL);
+                Segment segment;
+                synchronized (this) {
+                    if (!dirty) {
+                        continue;
+                    }
+                    dirty = false;
+                    segment = this.segment;
+                }
+                segment.force();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * data and index files of one segment, both mapped for their whole size
+     */
+    private static class Segment {
+        final int number;
+        final MappedByteBuffer data;
+        final ByteBuffer readOnly;
+        final MappedByteBuffer index;
+        /**
+         * records and end offset of the last one. Written under the log lock
+         */
+        int count;
+        int end;
+
+        Segment(int number) throws IOException {
+            this.number = number;
+            String name = String.format("%08d", number);
+            data = map(DIRECTORY.resolve(name + ".log"), SEGMENT_SIZE);
+            readOnly = data.asReadOnlyBuffer();
+            index = map(DIRECTORY.resolve(name + ".idx"), capacity() * 4);
+        }
+
+        private static MappedByteBuffer map(Path path, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * @return maximal number of records in the segment
+         */
+        int capacity() {
+            return SEGMENT_SIZE / MIN_RECORD_SIZE;
+        }
+
+        /**
+         * trusts the index up to the last valid indexed record and checks the records after it
+         */
+        void recover() {
+            int low = 0, high = capacity();
+            // entries are increasing end offsets followed by zeros
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (index.getInt(middle * 4) != 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            count = low;
+            while (count > 0 && !isValid(count == 1 ? 0 : index.getInt((count - 2) * 4))) {
+                count--;
+            }
+            end = count == 0 ? 0 : index.getInt((count - 1) * 4);
+            while (count < capacity() && isValid(end)) {
+                end += RECORD_HEADER_SIZE + data.getInt(end);
+                index.putInt(count * 4, end);
+                count++;
+            }
+            for (int i = count; i < capacity() && index.getInt(i * 4) != 0; i++) {
+                index.putInt(i * 4, 0);
+            }
+        }
+
+        private boolean isValid(int offset) {
+            if (offset + RECORD_HEADER_SIZE > SEGMENT_SIZE) {
+                return false;
+            }
+            int bodyLength = data.getInt(offset);
+            if (bodyLength < MIN_RECORD_SIZE - RECORD_HEADER_SIZE || bodyLength > SEGMENT_SIZE - offset - RECORD_HEADER_SIZE) {
+                return false;
+            }
+            if (!isParsable(offset, bodyLength)) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate().position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + bodyLength));
+            return (int) crc.getValue() == data.getInt(offset + 4);
+        }
+
+        /**
+         * @return true if the room name of the record leaves space for the id and the frame type
+         */
+        boolean isParsable(int offset, int bodyLength) {
+            int roomLength = data.getShort(offset + RECORD_HEADER_SIZE) & MAX_ROOM_LENGTH;
+            return 2 + roomLength + 8 + 1 <= bodyLength;
+        }
+
+        /**
+         * drops the records from the given one on, they are overwritten by the next appends
+         *
+         * @param records number of records kept
+         */
+        void truncate(int records) {
+            for (int i = records; i < count; i++) {
+                index.putInt(i * 4, 0);
+            }
+            count = records;
+            end = count == 0 ? 0 : index.getInt((count - 1) * 4);
+        }
+
+        void force() {
+            data.force();
+            index.force();
+        }
+    }
+}
@@ -2,9 +2,57 @@ package server;
 
 /**
  * wrapper for /history command
+ * command syntax is: /history [count] or /history since messageId
  */
 class HistoryMessage extends Message {
-    HistoryMessage(String author) {
+    /**
+     * page size limit, also used when count is omitted
+     */
+    static final int MAX_PAGE = Integer.getInteger("server.history.page", 100);
+
+    private final int count;
+    /**
+     * id of the last message seen by the client, -1 for the latest messages
+     */
+    private final long since;
+
+    private HistoryMessage(String author, int count, long since) {
         super(author);
+        this.count = count;
+        this.since = since;
+    }
+
+    /**
+     * Parses HistoryMessage from raw text
+     * @param text raw text from client
+     * @param author client's name
+     * @return HistoryMessage object
+     * @throws InvalidFormatException when arguments are not numbers
+     */
+    static HistoryMessage parse(String text, String author) throws InvalidFormatException {
+        String[] args = text.trim().split("\\s+");
+        try {
+            if (args.length == 1) {
+                return new HistoryMessage(author, MAX_PAGE, -1);
+            } else if (args.length == 2) {
+                int count = Integer.parseInt(args[1]);
+                if (count > 0) {
+                    return new HistoryMessage(author, Math.min(count, MAX_PAGE), -1);
+                }
+            } else if (args.length == 3 && args[1].equals("since")) {
+                return new HistoryMessage(author, MAX_PAGE, Long.parseLong(args[2]));
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new InvalidFormatException(author);
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getSince() {
+        return since;
     }
 }
@@ -0,0 +1,14 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * command or request has invalid format, the client is told so and the connection stays open
+ */
+public class InvalidFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidFormatException(String message) {
+        super(message);
+    }
+}
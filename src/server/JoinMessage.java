@@ -0,0 +1,37 @@
+package server;
+
+/**
+ * wrapper for /join command
+ * command syntax is: /join roomName
+ */
+class JoinMessage extends Message {
+    /**
+     * longest room name in characters
+     */
+    static final int MAX_ROOM_LENGTH = Integer.getInteger("server.rooms.maxNameLength", 64);
+
+    private final String room;
+
+    private JoinMessage(String author, String room) {
+        super(author);
+        this.room = room;
+    }
+
+    /**
+     * Parses JoinMessage from raw text
+     * @param text raw text from client
+     * @param author client's name
+     * @return JoinMessage object
+     * @throws InvalidFormatException when room name is missing, too long or contains spaces
+     */
+    static JoinMessage parse(String text, String author) throws InvalidFormatException {
+        String room = text.substring(text.indexOf(' ') + 1).trim();
+        if (text.indexOf(' ') == -1 || room.isEmpty() || room.length() > MAX_ROOM_LENGTH
+                || room.contains(" ")) throw new InvalidFormatException(author);
+        return new JoinMessage(author, room);
+    }
+
+    String getRoom() {
+        return room;
+    }
+}
@@ -0,0 +1,10 @@
+package server;
+
+/**
+ * wrapper for /leave command, returns the client to the default room
+ */
+class LeaveMessage extends Message {
+    LeaveMessage(String author) {
+        super(author);
+    }
+}
@@ -1,11 +1,24 @@
 package server;
 
 
+import common.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Basic message class
  */
 public class Message {
     final String author;
+    /**
+     * encoded frame, built once and shared by all receivers
+     */
+    private volatile ByteBuffer frame;
+    /**
+     * id in room's history, -1 if message is not kept in history
+     */
+    private volatile long historyId = -1;
 
     Message(String author) {
         this.author = author.trim();
@@ -14,4 +27,45 @@ public class Message {
     public String getAuthor() {
         return author;
     }
+
+    long getHistoryId() {
+        return historyId;
+    }
+
+    void setHistoryId(long historyId) {
+        this.historyId = historyId;
+    }
+
+    /**
+     *
+     * @return text sent to clients, null if message is not sent to clients
+     */
+    String getWireText() {
+        return null;
+    }
+
+    /**
+     * Encodes message on first call, prefixed with its history id if it has one. Every caller gets its own view of the same read-only bytes
+     * @return flipped frame, null if message is not sent to clients
+     */
+    ByteBuffer encode() {
+        ByteBuffer encoded = frame;
+        if (encoded == null) {
+            String text = getWireText();
+            if (text == null) {
+                return null;
+            }
+            if (historyId >= 0) {
+                text = "#" + historyId + " " + text;
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Frame.HEADER_SIZE + bytes.length);
+            Frame.writeHeader(buffer, Frame.TEXT, bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+            encoded = buffer.asReadOnlyBuffer();
+            frame = encoded;
+        }
+        return encoded.duplicate();
+    }
 }
@@ -0,0 +1,18 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for parsing one text frame into a message
+ */
+@Name("chat.Parse")
+@Label("Message Parse")
+@Category({"Chat", "Server"})
+@Description("Command lookup and message construction for one frame")
+class ParseEvent extends jdk.jfr.Event {
+    @Label("Message Type")
+    String messageType;
+}
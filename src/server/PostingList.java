@@ -0,0 +1,119 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Ascending message ids of one term. The first id is kept as is, the rest as varint encoded
+ * deltas, so ids close to each other take a byte or two. Ids are added at the tail and removed
+ * from the head only, like messages of a room history
+ */
+class PostingList {
+    private byte[] data = new byte[8];
+    /**
+     * offset of the delta following {@link #first}
+     */
+    private int start;
+    private int end;
+    private long first;
+    private long last;
+    private int size;
+
+    /**
+     * @param id id greater than every id in the list
+     */
+    void add(long id) {
+        if (size == 0) {
+            first = id;
+            start = end = 0;
+        } else {
+            long delta = id - last;
+            if (end + 10 > data.length && start > data.length / 2) {
+                compact();
+            }
+            if (end + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7FL) != 0) {
+                data[end++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            data[end++] = (byte) delta;
+        }
+        last = id;
+        size++;
+    }
+
+    /**
+     * removes the smallest id if it equals the given one
+     *
+     * @param id id leaving the history
+     */
+    void removeFirst(long id) {
+        if (size == 0 || first != id) {
+            return;
+        }
+        size--;
+        if (size == 0) {
+            start = end = 0;
+            return;
+        }
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[start++];
+            delta |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        first += delta;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return compact copy of the list
+     */
+    PostingList copy() {
+        PostingList copy = new PostingList();
+        copy.data = Arrays.copyOfRange(data, start, Math.max(end, start + 1));
+        copy.end = end - start;
+        copy.first = first;
+        copy.last = last;
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * @param before exclusive upper bound
+     * @return decoded ids less than before
+     */
+    long[] toArray(long before) {
+        long[] ids = new long[size];
+        int count = 0;
+        long id = first;
+        int offset = start;
+        for (int i = 0; i < size && id < before; i++) {
+            ids[count++] = id;
+            if (offset < end) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[offset++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    private void compact() {
+        data = Arrays.copyOfRange(data, start, start + data.length);
+        end -= start;
+        start = 0;
+    }
+}
@@ -0,0 +1,14 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * upload rejected because it does not fit the storage quota, the message is sent to the client
+ */
+class QuotaExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop owning a set of channels. The server runs one boss reactor for accepting
+ * and optionally several worker reactors doing client I/O
+ */
+class Reactor implements Runnable {
+    private final String name;
+    private final SelectorEngine engine;
+    private final Selector selector;
+    /**
+     * tasks handed over from other threads, run by the loop itself
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    /**
+     * timers of connections owned by this reactor
+     */
+    private final HashedTimerWheel timers = new HashedTimerWheel(100, 512);
+
+    /**
+     * @param name   thread name
+     * @param engine engine processing ready keys
+     * @throws IOException if selector cannot be opened
+     */
+    Reactor(String name, SelectorEngine engine) throws IOException {
+        this.name = name;
+        this.engine = engine;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * starts loop in a new thread
+     */
+    void start() {
+        new Thread(this, name).start();
+    }
+
+    /**
+     * registers channel on this reactor's selector. Safe to call from any thread
+     *
+     * @param channel non-blocking client channel
+     */
+    void register(SelectableChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                engine.clientRegistered(this, key);
+            } catch (ClosedChannelException e) {
+                // client left before registration
+            }
+        });
+    }
+
+    /**
+     * runs task on the loop thread, immediately if called from it
+     *
+     * @param task task touching state owned by this reactor
+     */
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    HashedTimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * @return true if called from this reactor's loop
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * makes the loop notice interest changes made from other threads
+     */
+    void wakeup() {
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                selector.select(timers.isEmpty() ? 0 : timers.getTickMillis());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            runTasks();
+            timers.advance(System.nanoTime());
+
+            Set<SelectionKey> readyKeys = selector.selectedKeys();
+            Iterator<SelectionKey> iterator = readyKeys.iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                engine.processKey(key);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
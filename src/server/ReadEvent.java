@@ -0,0 +1,26 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one read from a client socket
+ */
+@Name("chat.Read")
+@Label("Client Read")
+@Category({"Chat", "Network"})
+@Description("Bytes read from a client connection and frames decoded from them")
+class ReadEvent extends jdk.jfr.Event {
+    @Label("Client")
+    String client;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    @Label("Frames")
+    int frames;
+}
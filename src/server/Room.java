@@ -0,0 +1,130 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chat room. Messages posted to a room reach only its subscribers and stay in its history
+ */
+class Room {
+    /**
+     * messages kept in history of every room
+     */
+    private static final int HISTORY_CAPACITY = Integer.getInteger("server.history.capacity", 10_000);
+
+    private final String name;
+    private final HistoryLog log;
+    private final Set<Connection> subscribers = ConcurrentHashMap.newKeySet();
+    private final HistoryBuffer history;
+    /**
+     * covers messages kept in {@link #history}
+     */
+    private final SearchIndex index = new SearchIndex();
+    /**
+     * {@link System#nanoTime()} of the last join, leave or message
+     */
+    private volatile long lastActivity = System.nanoTime();
+
+    /**
+     * @param name    room name
+     * @param log     log storing history of all rooms
+     * @param firstId id of the first message
+     */
+    Room(String name, HistoryLog log, long firstId) {
+        this.name = name;
+        this.log = log;
+        history = new HistoryBuffer(HISTORY_CAPACITY, firstId);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void join(Connection connection) {
+        subscribers.add(connection);
+        touch();
+    }
+
+    void leave(Connection connection) {
+        subscribers.remove(connection);
+        touch();
+    }
+
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * @param timeoutMillis how long the room must be quiet
+     * @return true if nobody is in the room and nothing happened in it for the timeout
+     */
+    boolean isIdle(long timeoutMillis) {
+        return subscribers.isEmpty() && System.nanoTime() - lastActivity >= TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * @return id the next message gets
+     */
+    long nextId() {
+        return history.nextId();
+    }
+
+    /**
+     * @return live view of room's subscribers
+     */
+    Collection<Connection> subscribers() {
+        return subscribers;
+    }
+
+    int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * assigns message id and appends the message to the log
+     *
+     * @param message message which is not encoded yet
+     * @throws IOException if the log cannot be written
+     */
+    void addToHistory(Message message) throws IOException {
+        synchronized (history) {
+            long id = history.nextId();
+            message.setHistoryId(id);
+            ByteBuffer frame = message.encode();
+            log.append(name, id, frame);
+            history.append(frame, index::remove);
+            index.add(id, frame);
+        }
+        touch();
+    }
+
+    /**
+     * adds message found in the log during recovery
+     */
+    void restore(long id, ByteBuffer frame) {
+        synchronized (history) {
+            history.restore(id, frame, index::remove);
+            index.add(id, frame);
+        }
+    }
+
+    /**
+     * @param query search request
+     * @return the latest matching messages as a few bulk buffers, oldest first
+     */
+    ByteBuffer[] search(SearchMessage query) {
+        return history.get(index.search(query.getQuery(), query.getBefore(), query.getCount()));
+    }
+
+    /**
+     * @param query page requested by the client
+     * @return encoded messages as a few bulk buffers, oldest first
+     */
+    ByteBuffer[] history(HistoryMessage query) {
+        return query.getSince() >= 0 ? history.since(query.getSince(), query.getCount()) : history.last(query.getCount());
+    }
+}
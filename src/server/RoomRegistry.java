@@ -0,0 +1,92 @@
+package server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rooms by name. Rooms are created on first join up to a limit, rooms found in the history log are restored
+ * at startup. A room nobody was in for a while is dropped when another room is created, its history stays
+ * in the log
+ */
+class RoomRegistry {
+    /**
+     * room every client joins after login
+     */
+    static final String DEFAULT_ROOM = "general";
+    /**
+     * maximal number of rooms
+     */
+    private static final int MAX_ROOMS = Integer.getInteger("server.rooms.max", 1000);
+    /**
+     * how long an empty room is kept, ms
+     */
+    private static final long IDLE_TIMEOUT = Long.getLong("server.rooms.idleTimeout", 10 * 60_000);
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final HistoryLog log;
+    /**
+     * message ids of a recreated room continue after the ids of every dropped room
+     */
+    private final AtomicLong droppedNextId = new AtomicLong();
+
+    /**
+     * opens the history log and restores rooms from it
+     *
+     * @throws IOException if the log cannot be opened
+     */
+    RoomRegistry() throws IOException {
+        log = new HistoryLog();
+        rooms.put(DEFAULT_ROOM, new Room(DEFAULT_ROOM, log, 0));
+        log.recover((room, id, frame) -> rooms.computeIfAbsent(room, key -> new Room(key, log, 0)).restore(id, frame));
+    }
+
+    Room getDefault() {
+        return rooms.get(DEFAULT_ROOM);
+    }
+
+    /**
+     * @param name room name
+     * @return existing room or a new one, null if there are too many rooms
+     */
+    Room getOrCreate(String name) {
+        Room room = rooms.get(name);
+        if (room == null) {
+            dropIdle();
+        }
+        // touched atomically with the lookup, so the room is not dropped before the caller uses it
+        return rooms.compute(name, (key, existing) -> {
+            if (existing == null) {
+                if (rooms.size() >= MAX_ROOMS) {
+                    return null;
+                }
+                existing = new Room(key, log, droppedNextId.get());
+            }
+            existing.touch();
+            return existing;
+        });
+    }
+
+    private void dropIdle() {
+        for (Room room : rooms.values()) {
+            if (!room.getName().equals(DEFAULT_ROOM) && room.isIdle(IDLE_TIMEOUT)) {
+                rooms.computeIfPresent(room.getName(), (key, existing) -> {
+                    if (!existing.isIdle(IDLE_TIMEOUT)) {
+                        return existing;
+                    }
+                    droppedNextId.accumulateAndGet(existing.nextId(), Math::max);
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * @return live view of all rooms
+     */
+    Collection<Room> rooms() {
+        return rooms.values();
+    }
+}
@@ -0,0 +1,10 @@
+package server;
+
+/**
+ * wrapper for /rooms command
+ */
+class RoomsMessage extends Message {
+    RoomsMessage(String author) {
+        super(author);
+    }
+}
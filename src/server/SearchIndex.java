@@ -0,0 +1,129 @@
+package server;
+
+import common.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index of a room history: term to ids of messages containing it.
+ * Updated by the threads appending to the history, queried by search workers
+ */
+class SearchIndex {
+    /**
+     * guarded by this
+     */
+    private final Map<String, PostingList> postings = new HashMap<>();
+
+    /**
+     * @param id    message id
+     * @param frame encoded message
+     */
+    void add(long id, ByteBuffer frame) {
+        Set<String> terms = terms(frame);
+        synchronized (this) {
+            for (String term : terms) {
+                postings.computeIfAbsent(term, key -> new PostingList()).add(id);
+            }
+        }
+    }
+
+    /**
+     * forgets message which left the history
+     *
+     * @param id    message id, the oldest one in the index
+     * @param frame encoded message
+     */
+    void remove(long id, ByteBuffer frame) {
+        Set<String> terms = terms(frame);
+        synchronized (this) {
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list != null) {
+                    list.removeFirst(id);
+                    if (list.isEmpty()) {
+                        postings.remove(term);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * finds messages containing all terms. Posting lists are copied under the lock and merged outside it
+     *
+     * @param query  search query
+     * @param before only ids less than this one are returned
+     * @param count  maximal number of ids
+     * @return the latest matching ids, ascending
+     */
+    long[] search(String query, long before, int count) {
+        Set<String> terms = terms(query);
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        PostingList[] lists = new PostingList[terms.size()];
+        synchronized (this) {
+            int i = 0;
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    return new long[0];
+                }
+                lists[i++] = list.copy();
+            }
+        }
+        long[] result = lists[0].toArray(before);
+        for (int i = 1; i < lists.length && result.length > 0; i++) {
+            result = intersect(result, lists[i].toArray(before));
+        }
+        return result.length > count ? Arrays.copyOfRange(result, result.length - count, result.length) : result;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * terms of an encoded message: its text without the frame header, history id prefix and author,
+     * so a search for a name does not match every message its owner wrote
+     */
+    private static Set<String> terms(ByteBuffer frame) {
+        String text = StandardCharsets.UTF_8.decode(frame.duplicate().position(frame.position() + Frame.HEADER_SIZE)).toString();
+        if (text.startsWith("#")) {
+            text = text.substring(text.indexOf(' ') + 1);
+        }
+        return terms(text.substring(text.indexOf(": ") + 1));
+    }
+
+    /**
+     * @return distinct lower case words of the text
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String term : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+}
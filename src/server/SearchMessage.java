@@ -0,0 +1,57 @@
+package server;
+
+/**
+ * wrapper for /search command
+ * command syntax is: /search [before messageId] terms
+ */
+class SearchMessage extends Message {
+    private final String query;
+    /**
+     * only messages with smaller ids are found, used to get the next page
+     */
+    private final long before;
+
+    private SearchMessage(String author, String query, long before) {
+        super(author);
+        this.query = query;
+        this.before = before;
+    }
+
+    /**
+     * Parses SearchMessage from raw text
+     * @param text raw text from client
+     * @param author client's name
+     * @return SearchMessage object
+     * @throws InvalidFormatException when there are no terms or message id is not a number
+     */
+    static SearchMessage parse(String text, String author) throws InvalidFormatException {
+        String[] args = text.trim().split("\\s+", 4);
+        long before = Long.MAX_VALUE;
+        String query = args.length > 1 ? text.trim().substring(args[0].length()).trim() : "";
+        if (args.length == 4 && args[1].equals("before")) {
+            try {
+                before = Long.parseLong(args[2]);
+            } catch (NumberFormatException e) {
+                throw new InvalidFormatException(author);
+            }
+            query = args[3];
+        }
+        if (SearchIndex.terms(query).isEmpty()) throw new InvalidFormatException(author);
+        return new SearchMessage(author, query, before);
+    }
+
+    String getQuery() {
+        return query;
+    }
+
+    long getBefore() {
+        return before;
+    }
+
+    /**
+     * @return page size
+     */
+    int getCount() {
+        return HistoryMessage.MAX_PAGE;
+    }
+}
@@ -0,0 +1,374 @@
+package server;
+
+import common.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection served by a {@link Reactor}, attached to its {@link java.nio.channels.SelectionKey}.
+ * Outgoing frames are queued and written when the socket is writable
+ */
+class SelectorConnection extends Connection {
+    /**
+     * soft limit of bytes waiting in the outbound queue
+     */
+    static final int OUTBOUND_LIMIT = Integer.getInteger("server.outbound.limit", 1024 * 1024);
+    static final SlowConsumerPolicy SLOW_CONSUMER_POLICY =
+            SlowConsumerPolicy.valueOf(System.getProperty("server.slowConsumer", SlowConsumerPolicy.DROP_OLDEST.name()));
+    /**
+     * queued buffers passed to one gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final SelectionKey key;
+    private final Reactor reactor;
+
+    /**
+     * messages not yet written to the socket. Guarded by this
+     */
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    /**
+     * queued buffers which go back to the pool once written or dropped. Guarded by this
+     */
+    private final Set<ByteBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * queued frames of multiplexed transfers, exempt from the slow consumer policy. Guarded by this
+     */
+    private final Set<ByteBuffer> streamFrames = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long queuedBytes;
+    /**
+     * part of {@link #queuedBytes} taken by the unwritten bytes of {@link #streamFrames}
+     */
+    private long streamBytes;
+    private boolean closed;
+    /**
+     * set when a transfer takes the channel over, later frames are dropped. Guarded by this
+     */
+    private boolean detached;
+    /**
+     * released when the queue is written after {@link #detach()}, null if nobody waits. Guarded by this
+     */
+    private CountDownLatch drained;
+    /**
+     * connections whose reads are paused until this queue drains. Guarded by this
+     */
+    private final Set<SelectorConnection> blockedSenders = new LinkedHashSet<>();
+    /**
+     * scratch array for gathering writes. Guarded by this
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    /**
+     * number of slow consumers this connection is paused by
+     */
+    private final AtomicInteger blockedBy = new AtomicInteger();
+
+    /**
+     * @param key     registered client's key
+     * @param reactor reactor owning the key
+     */
+    SelectorConnection(SelectionKey key, Reactor reactor) {
+        super((SocketChannel) key.channel(), reactor.getTimers());
+        this.key = key;
+        this.reactor = reactor;
+    }
+
+    /**
+     * writes data or queues it until the socket is writable
+     */
+    @Override
+    boolean send(ByteBuffer data, Connection origin) {
+        return enqueue(data, origin, false, false);
+    }
+
+    @Override
+    boolean sendPooled(ByteBuffer data) {
+        return enqueue(data, null, true, false);
+    }
+
+    @Override
+    boolean sendStream(ByteBuffer data) {
+        return enqueue(data, null, true, true);
+    }
+
+    /**
+     * queued like any frame, the caller never waits for the socket
+     */
+    @Override
+    boolean ping(ByteBuffer frame) {
+        return send(frame, null);
+    }
+
+    /**
+     * runs in place on the reactor: writes to other clients are queued, so the disconnect never waits
+     */
+    @Override
+    void reap(Runnable disconnect) {
+        disconnect.run();
+    }
+
+    private synchronized boolean enqueue(ByteBuffer data, Connection origin, boolean fromPool, boolean stream) {
+        if (closed || detached) {
+            if (fromPool) {
+                BufferPool.SHARED.release(data);
+            }
+            return true;
+        }
+        try {
+            if (outbound.isEmpty()) {
+                getChannel().write(data);
+                if (!data.hasRemaining()) {
+                    if (fromPool) {
+                        BufferPool.SHARED.release(data);
+                    }
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            if (fromPool) {
+                BufferPool.SHARED.release(data);
+            }
+            return false;
+        }
+        return queue(data, origin, fromPool, stream);
+    }
+
+    /**
+     * writes as many frames as the socket takes in one gathering write and queues the rest
+     */
+    @Override
+    synchronized boolean sendBatch(ByteBuffer[] frames) {
+        if (closed || detached || frames.length == 0) {
+            return true;
+        }
+        int first = 0;
+        if (outbound.isEmpty()) {
+            try {
+                getChannel().write(frames);
+            } catch (IOException e) {
+                return false;
+            }
+            while (first < frames.length && !frames[first].hasRemaining()) {
+                first++;
+            }
+        }
+        for (int i = first; i < frames.length; i++) {
+            if (!queue(frames[i], null, false, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * adds data to the outbound queue applying the slow consumer policy to all but stream frames
+     */
+    private boolean queue(ByteBuffer data, Connection origin, boolean fromPool, boolean stream) {
+        if (!stream && queuedBytes - streamBytes + data.remaining() > OUTBOUND_LIMIT) {
+            switch (SLOW_CONSUMER_POLICY) {
+                case DROP_CONNECTION:
+                    return false;
+                case DROP_OLDEST:
+                    dropOldest(data.remaining());
+                    break;
+                case BLOCK_SENDER:
+                    if (origin instanceof SelectorConnection && origin != this
+                            && blockedSenders.add((SelectorConnection) origin)) {
+                        ((SelectorConnection) origin).pauseReads();
+                    }
+                    break;
+            }
+        }
+        outbound.add(data);
+        if (fromPool) {
+            pooled.add(data);
+        }
+        if (stream) {
+            streamFrames.add(data);
+            streamBytes += data.remaining();
+        }
+        queuedBytes += data.remaining();
+        try {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            return false;
+        }
+        reactor.wakeup();
+        return true;
+    }
+
+    /**
+     * writes queued data, called by the owning reactor when the socket is writable
+     *
+     * @throws IOException if the connection is broken
+     */
+    void flush() throws IOException {
+        List<SelectorConnection> resumed = null;
+        synchronized (this) {
+            SocketChannel channel = getChannel();
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : outbound) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                long streamed = streamBytes > 0 ? streamRemaining(count) : 0;
+                queuedBytes -= channel.write(gather, 0, count);
+                if (streamed > 0) {
+                    streamBytes -= streamed - streamRemaining(count);
+                }
+                Arrays.fill(gather, 0, count, null);
+                ByteBuffer head;
+                while ((head = outbound.peek()) != null && !head.hasRemaining()) {
+                    discard(outbound.poll());
+                }
+                if (head != null) {
+                    break;
+                }
+            }
+            if (outbound.isEmpty()) {
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                if (drained != null) {
+                    drained.countDown();
+                    drained = null;
+                }
+            }
+            if (queuedBytes <= OUTBOUND_LIMIT / 2 && !blockedSenders.isEmpty()) {
+                resumed = new ArrayList<>(blockedSenders);
+                blockedSenders.clear();
+            }
+        }
+        if (resumed != null) {
+            resumed.forEach(SelectorConnection::resumeReads);
+        }
+    }
+
+    /**
+     * @param count number of gathered buffers
+     * @return unwritten bytes of the stream frames among them
+     */
+    private long streamRemaining(int count) {
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            if (streamFrames.contains(gather[i])) {
+                remaining += gather[i].remaining();
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * waits for the reactor to write the queue
+     */
+    @Override
+    void detach() {
+        CountDownLatch latch;
+        synchronized (this) {
+            detached = true;
+            if (closed || outbound.isEmpty()) {
+                return;
+            }
+            latch = drained = new CountDownLatch(1);
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * stops queueing, returns buffers to the pool and releases connections paused by this one
+     */
+    @Override
+    void close() {
+        List<SelectorConnection> resumed;
+        synchronized (this) {
+            closed = true;
+            if (drained != null) {
+                drained.countDown();
+                drained = null;
+            }
+            outbound.forEach(this::discard);
+            outbound.clear();
+            queuedBytes = 0;
+            streamBytes = 0;
+            resumed = new ArrayList<>(blockedSenders);
+            blockedSenders.clear();
+        }
+        reactor.execute(decoder::release);
+        resumed.forEach(SelectorConnection::resumeReads);
+    }
+
+    /**
+     * drops queued messages which were not started until the new one fits. Stream frames are kept,
+     * a gap in a stream would break the transfer
+     *
+     * @param incoming size of the new message
+     */
+    private void dropOldest(int incoming) {
+        Iterator<ByteBuffer> queued = outbound.iterator();
+        while (queued.hasNext() && queuedBytes - streamBytes + incoming > OUTBOUND_LIMIT) {
+            ByteBuffer candidate = queued.next();
+            if (candidate.position() > 0 || streamFrames.contains(candidate)) {
+                continue;
+            }
+            queued.remove();
+            queuedBytes -= candidate.remaining();
+            discard(candidate);
+        }
+    }
+
+    /**
+     * forgets buffer removed from the queue, returning pooled ones
+     */
+    private void discard(ByteBuffer buffer) {
+        if (streamFrames.remove(buffer)) {
+            streamBytes -= buffer.remaining();
+        }
+        if (pooled.remove(buffer)) {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+
+    @Override
+    void pauseReads() {
+        if (blockedBy.getAndIncrement() == 0) {
+            try {
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+                reactor.wakeup();
+            } catch (CancelledKeyException e) {
+                // sender disconnected meanwhile
+            }
+        }
+    }
+
+    @Override
+    void resumeReads() {
+        if (blockedBy.decrementAndGet() == 0) {
+            try {
+                key.interestOpsOr(SelectionKey.OP_READ);
+                reactor.wakeup();
+            } catch (CancelledKeyException e) {
+                // sender disconnected meanwhile
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package server;
+
+import common.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static server.Server.isDebugEnabled;
+import static server.Server.logDebug;
+import static server.Server.logInfo;
+
+/**
+ * Engine built on selectors: a boss reactor accepts connections and hands them to worker reactors
+ */
+class SelectorEngine implements ServerEngine {
+    /**
+     * number of worker reactors doing client I/O. 0 keeps everything on the accepting thread
+     */
+    private static final int WORKERS = Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors());
+
+    private final Server server;
+    /**
+     * accepts connections, and serves them too when there are no workers
+     */
+    private final Reactor boss;
+    private final Reactor[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    SelectorEngine(Server server) throws IOException {
+        this.server = server;
+        boss = new Reactor("server-boss", this);
+        workers = new Reactor[Math.max(0, WORKERS)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Reactor("server-worker-" + i, this);
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(Server.PORT));
+        serverChannel.register(boss.getSelector(), SelectionKey.OP_ACCEPT);
+        logInfo("Selector engine, workers: " + workers.length);
+    }
+
+    /**
+     * starts worker reactors and runs the accepting loop on the current thread
+     */
+    @Override
+    public void run() {
+        for (Reactor worker : workers) {
+            worker.start();
+        }
+        boss.run();
+    }
+
+    /**
+     * serves a ready key. A bug hit by one client's input closes that client only, the reactor goes on
+     *
+     * @param key ready key
+     */
+    void processKey(SelectionKey key) {
+        try {
+            if (key.isAcceptable()) {
+                acceptConnection(key);
+                return;
+            }
+            if (key.isWritable()) {
+                writeQueued(key);
+            }
+            if (key.isValid() && key.isReadable()) {
+                readMessage(key);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                logInfo("closing " + connection + " after an internal error");
+                server.connectionFailed(connection);
+            }
+        }
+    }
+
+    /**
+     * registers client
+     *
+     * @param key server's {@link SelectionKey}
+     */
+    private void acceptConnection(SelectionKey key) {
+        logDebug("accepting a connection");
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        try {
+            SocketChannel client = serverChannel.accept();
+            if (client == null) return;
+            client.configureBlocking(false);
+            if (workers.length == 0) {
+                clientRegistered(boss, client.register(key.selector(), SelectionKey.OP_READ));
+            } else {
+                int index = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+                workers[index].register(client);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * called by the reactor which owns the client after registering it
+     *
+     * @param reactor owning reactor
+     * @param key     client's {@link SelectionKey}
+     */
+    void clientRegistered(Reactor reactor, SelectionKey key) {
+        SelectorConnection connection = new SelectorConnection(key, reactor);
+        key.attach(connection);
+        server.clientConnected(connection);
+    }
+
+    /**
+     * writes messages queued for the client
+     *
+     * @param key client's key
+     */
+    private void writeQueued(SelectionKey key) {
+        SelectorConnection connection = (SelectorConnection) key.attachment();
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            logInfo("error writing to " + connection);
+            server.connectionFailed(connection);
+        }
+    }
+
+    /**
+     * reads available bytes from key and processes every complete frame
+     *
+     * @param key client's {@link SelectionKey}
+     */
+    private void readMessage(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (isDebugEnabled()) logDebug("reading message from " + connection);
+        ReadEvent event = new ReadEvent();
+        event.begin();
+        try {
+            int numReadBytes = connection.getChannel().read(connection.decoder.writableBuffer());
+            if (numReadBytes == -1) {
+                logDebug("Client closed connection");
+                server.cleanupClientConnection(connection);
+                return;
+            }
+            connection.touch();
+            int frames = 0;
+            Frame frame;
+            while (key.isValid() && (frame = connection.decoder.next()) != null) {
+                server.processFrame(connection, frame);
+                frames++;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.client = connection.toString();
+                event.bytes = numReadBytes;
+                event.frames = frames;
+                event.commit();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            server.connectionFailed(connection);
+        }
+    }
+}
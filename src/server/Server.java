@@ -1,348 +1,1133 @@
 package server;
 
+import common.BufferPool;
+import common.ChunkCompressor;
+import common.FileCache;
 import common.FileUploadTask;
-import com.sun.media.sound.InvalidFormatException;
+import common.Frame;
+import common.TransferScheduler;
+import common.TransferStream;
+import server.FileRegistry.FileRecord;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Server {
     public static final String serverName = "System";
 
     private static final Logger log = Logger.getGlobal();
-    private static final int BUFFER_SIZE = 1024;
 
 
-    private static void logDebug(String data) {
+    static void logDebug(String data) {
+        log.log(Level.FINE, data);
+    }
+
+    static void logInfo(String data) {
         log.log(Level.INFO, data);
     }
 
+    /**
+     * hot paths check it before building log strings
+     */
+    static boolean isDebugEnabled() {
+        return log.isLoggable(Level.FINE);
+    }
+
     public static final int PORT = 1234;
-    private final Selector selector;
+    /**
+     * selector (default) or blocking
+     */
+    private static final String ENGINE = System.getProperty("server.engine", "selector");
+    /**
+     * silence after which an idle chat client is pinged, ms
+     */
+    private static final long PING_INTERVAL = Long.getLong("server.pingInterval", 30_000);
+    /**
+     * silence after which a chat client is disconnected, ms
+     */
+    private static final long IDLE_TIMEOUT = Long.getLong("server.idleTimeout", 90_000);
+    /**
+     * silence after which an upload is considered stalled and disconnected, ms
+     */
+    private static final long TRANSFER_IDLE_TIMEOUT = Long.getLong("server.transferIdleTimeout", 60_000);
+    /**
+     * shared by all connections, every client gets its own duplicate
+     */
+    private static final ByteBuffer PING_FRAME = emptyFrame(Frame.PING);
+    /**
+     * threads running /search queries
+     */
+    private static final int SEARCH_THREADS = Integer.getInteger("server.search.threads", 2);
+    /**
+     * threads writing uploads to disk
+     */
+    private static final int DISK_WRITERS = Integer.getInteger("server.diskWriters", 2);
+    /**
+     * downloads sent at the same time, the rest wait in a queue
+     */
+    private static final int MAX_TRANSFERS = Integer.getInteger("server.transfers.max", 8);
+    /**
+     * bytes per second for all downloads together, 0 for no limit
+     */
+    private static final long TRANSFERS_RATE = Long.getLong("server.transfers.rate", 0);
+    /**
+     * bytes per second for every download, 0 for no limit
+     */
+    private static final long TRANSFER_RATE = Long.getLong("server.transfers.perTransferRate", 0);
+    /**
+     * suffix of an upload that is not complete yet
+     */
+    private static final String PART_SUFFIX = ".part";
+    /**
+     * false to send and accept file data only raw
+     */
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("server.compression", "true"));
+    /**
+     * bytes of popular small files kept in memory for downloads, 0 to always read from disk
+     */
+    private static final long CACHE_SIZE = Long.getLong("server.cache.size", 64 * 1024 * 1024);
+    /**
+     * largest file the cache takes
+     */
+    private static final long CACHE_MAX_FILE = Long.getLong("server.cache.maxFile", 1024 * 1024);
+
     /**
      * active clients
      */
-    private final Set<SelectionKey> clients = new HashSet<>();
+    private final Set<Connection> clients = ConcurrentHashMap.newKeySet();
+    /**
+     * .part files being written, each has one writer at a time
+     */
+    private final Set<Path> activeParts = ConcurrentHashMap.newKeySet();
+    /**
+     * logged in clients by name
+     */
+    private final SessionRegistry sessions = new SessionRegistry();
     /**
-     * message history
+     * rooms with their subscribers and history
      */
-    private final ArrayList<Message> history = new ArrayList<>();
+    private final RoomRegistry rooms;
+    private final BlobStore blobs;
+    private final FileRegistry files;
+    private final StorageQuota quota;
+    /**
+     * hot files by blob path, null if caching is off
+     */
+    private final FileCache cache = CACHE_SIZE > 0 ? new FileCache(CACHE_SIZE, CACHE_MAX_FILE) : null;
+    /**
+     * frees disk space away from the I/O threads
+     */
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor(daemonThreads("server-evict"));
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    /**
+     * slash commands, everything else is chat text
+     */
+    private final CommandTable<CommandParser> commands = new CommandTable<>();
+    /**
+     * runs searches away from the I/O threads
+     */
+    private final ExecutorService searchExecutor = Executors.newFixedThreadPool(SEARCH_THREADS, daemonThreads("server-search"));
+    /**
+     * writes uploads away from the I/O threads
+     */
+    private final ExecutorService diskWriters = Executors.newFixedThreadPool(DISK_WRITERS, daemonThreads("server-disk"));
+    private final TransferScheduler transfers =
+            new TransferScheduler("server-transfer", MAX_TRANSFERS, TRANSFERS_RATE, TRANSFER_RATE);
+    /**
+     * chat clients disconnected for being idle and uploads disconnected for being stalled, shown by /transfers
+     */
+    private final AtomicLong reapedClients = new AtomicLong();
+    private final AtomicLong reapedTransfers = new AtomicLong();
 
 
     public static void main(String[] args) {
         try {
-            new Server().run();
+            Server server = new Server();
+            ServerEngine engine = "blocking".equals(ENGINE) ? new BlockingEngine(server) : new SelectorEngine(server);
+            engine.run();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private Server() throws IOException {
-        logDebug("Init started");
-        selector = Selector.open();
-        ServerSocketChannel serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-        serverChannel.bind(new InetSocketAddress(PORT));
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        logDebug("Init finished");
-    }
-
-    private void run() throws IOException {
-        while (true) {
-            int readyCount = selector.select();
-            if (readyCount == 0) {
-                continue;
+        rooms = new RoomRegistry();
+        blobs = new BlobStore();
+        files = new FileRegistry();
+        quota = new StorageQuota(blobs);
+        for (FileRecord record : files.records()) {
+            if (!blobs.retain(record.hash)) {
+                logInfo(String.format("content of file %d (%s) is missing", record.id, record.hash));
             }
+            quota.added(record);
+        }
+        try (Stream<Path> entries = Files.list(Paths.get(""))) {
+            // interrupted uploads of the previous run
+            entries.filter(entry -> entry.toString().endsWith(PART_SUFFIX)).forEach(part -> {
+                try {
+                    quota.parked(part, Files.size(part));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        logInfo(String.format("storage: %d bytes in use, quota %d", quota.used(), StorageQuota.TOTAL_QUOTA));
+        scheduleEviction();
+        registerCommands();
+        logInfo("Init finished");
+    }
 
-            Set<SelectionKey> readyKeys = selector.selectedKeys();
-            Iterator iterator = readyKeys.iterator();
-            while (iterator.hasNext()) {
-                SelectionKey key = (SelectionKey) iterator.next();
-
+    private void registerCommands() {
+        commands.register("/login", (frame, connection) -> {
+            LoginMessage message = LoginMessage.parse(frame.getText());
+            return login(connection, message) ? message : null;
+        });
+        // transfers on connections of their own come from clients which are not logged in there
+        commands.register("/file", (frame, connection) -> FileMessage.parse(frame.getText(), connection.getName()));
+        commands.register("/download", (frame, connection) -> FileMessage.parseDownloadRequest(frame.getText(), serverName));
+        commands.register("/history", loggedIn((frame, connection) -> HistoryMessage.parse(frame.getText(), connection.getName())));
+        commands.register("/online", loggedIn((frame, connection) -> new OnlineMessage(connection.getName())));
+        commands.register("/msg", loggedIn((frame, connection) -> DirectMessage.parse(frame.getText(), connection.getName())));
+        commands.register("/join", loggedIn((frame, connection) -> JoinMessage.parse(frame.getText(), connection.getName())));
+        commands.register("/leave", loggedIn((frame, connection) -> new LeaveMessage(connection.getName())));
+        commands.register("/rooms", loggedIn((frame, connection) -> new RoomsMessage(connection.getName())));
+        commands.register("/transfers", loggedIn((frame, connection) -> new TransfersMessage(connection.getName())));
+        commands.register("/search", loggedIn((frame, connection) -> SearchMessage.parse(frame.getText(), connection.getName())));
+    }
 
-                if (!key.isValid()) {
-                    continue;
-                }
-                processKey(key);
-                iterator.remove();
+    /**
+     * @param parser parser of a command which needs the client's name and room
+     * @return parser which tells a client that is not logged in to log in first
+     */
+    private CommandParser loggedIn(CommandParser parser) {
+        return (frame, connection) -> {
+            if (!connection.isLoggedIn()) {
+                sendLoginRequired(connection);
+                return null;
             }
+            return parser.parse(frame, connection);
+        };
+    }
+
+    private void sendLoginRequired(Connection connection) {
+        sendReply(connection, "log in first with /login <name>");
+    }
+
+    /**
+     * registers user name of the connection. A name can be used by one connection at a time
+     *
+     * @param connection client
+     * @param message    login command
+     * @return false if login is rejected
+     */
+    private boolean login(Connection connection, LoginMessage message) {
+        if (connection.isLoggedIn()) {
+            sendReply(connection, "you are already logged in as " + connection.getName());
+            return false;
+        }
+        if (!sessions.register(message.author, connection)) {
+            sendReply(connection, "name " + message.author + " is already taken, reconnect with another name");
+            return false;
+        }
+        connection.setName(message.author);
+        Room room = rooms.getDefault();
+        room.join(connection);
+        connection.setRoom(room);
+        if (!clients.contains(connection)) {
+            // disconnected while logging in
+            sessions.unregister(connection);
+            room.leave(connection);
+            return false;
         }
+        return true;
     }
 
-    private void processKey(SelectionKey key) {
-        if (key.isAcceptable()) {
-            acceptConnection(key);
-        } else if (key.isReadable()) {
-            readMessage(key);
+    /**
+     * moves client to another room
+     *
+     * @param connection logged in client
+     * @param target     room to join
+     */
+    private void switchRoom(Connection connection, Room target) {
+        Room current = connection.getRoom();
+        if (current == target) {
+            sendReply(connection, "you are already in room " + target.getName());
+            return;
         }
+        current.leave(connection);
+        broadcastExcept(current, connection, new TextMessage(connection.getName() + " left the room", serverName));
+        target.join(connection);
+        connection.setRoom(target);
+        if (!clients.contains(connection)) {
+            // disconnected while switching
+            target.leave(connection);
+            return;
+        }
+        broadcastExcept(target, connection, new TextMessage(connection.getName() + " joined the room", serverName));
+        sendReply(connection, "you are in room " + target.getName());
+    }
+
+    private void sendRooms(Connection connection) {
+        StringBuilder answer = new StringBuilder();
+        for (Room room : rooms.rooms()) {
+            if (answer.length() > 0) {
+                answer.append('\n');
+            }
+            answer.append(room.getName()).append(" (").append(room.size()).append(')');
+        }
+        sendReply(connection, answer.toString());
     }
 
     /**
-     * sends message to client
+     * called by the engine for every accepted client
+     *
+     * @param connection new client's connection
+     */
+    void clientConnected(Connection connection) {
+        clients.add(connection);
+        scheduleIdleCheck(connection, Math.min(PING_INTERVAL, IDLE_TIMEOUT));
+    }
+
+    private void scheduleIdleCheck(Connection connection, long delayMillis) {
+        connection.getTimers().schedule(() -> checkIdle(connection), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * pings a silent client and disconnects it when the silence lasts too long.
+     * Runs on the timer thread of the connection and reschedules itself
      *
-     * @param key     client's key
-     * @param message message to be sent
-     */
-    private void sendMessage(SelectionKey key, Message message) {
-        String text;
-        if (message instanceof TextMessage)
-            text = ((TextMessage) message).getFullText() + "\n";
-        else if (message instanceof FileMessage)
-            text = ((FileMessage) message).getMessageText() + "\n";
-        else
+     * @param connection client's connection
+     */
+    private void checkIdle(Connection connection) {
+        if (!clients.contains(connection) || connection.isSendingFile()) {
+            // gone, or a download which finishes on its own
             return;
-        SocketChannel channel = (SocketChannel) key.channel();
-        logDebug("sending message " + text + " to " + channel.toString());
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        buffer.put(text.getBytes());
-        buffer.flip();
-        try {
-            channel.write(buffer);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("error sending message");
         }
+        UploadWriter upload = connection.getUpload();
+        boolean uploading = upload != null;
+        long timeout = uploading ? TRANSFER_IDLE_TIMEOUT : IDLE_TIMEOUT;
+        if (uploading && upload.isPaused()) {
+            // silent because the server waits for the disk, not the client
+            connection.touch();
+        }
+        long idle = TimeUnit.NANOSECONDS.toMillis(connection.idleNanos());
+        if (idle >= timeout) {
+            long total = (uploading ? reapedTransfers : reapedClients).incrementAndGet();
+            logInfo(String.format("disconnecting %s idle for %d ms (%s reaped: %d)",
+                    connection, idle, uploading ? "transfers" : "clients", total));
+            connection.reap(() -> connectionFailed(connection));
+            return;
+        }
+        long delay = timeout - idle;
+        if (!uploading) {
+            if (idle >= PING_INTERVAL) {
+                if (isDebugEnabled()) logDebug("pinging " + connection);
+                if (!connection.ping(PING_FRAME.duplicate())) {
+                    connection.reap(() -> cleanupClientConnection(connection));
+                    return;
+                }
+                delay = Math.min(delay, PING_INTERVAL);
+            } else {
+                delay = Math.min(delay, PING_INTERVAL - idle);
+            }
+        }
+        scheduleIdleCheck(connection, delay);
     }
 
     /**
-     * registers client
+     * sends message to client
      *
-     * @param key clients {@link SelectionKey}
+     * @param connection client's connection
+     * @param message    message to be sent
      */
-    private void acceptConnection(SelectionKey key) {
-        logDebug("accepting a connection");
-        ServerSocketChannel server = (ServerSocketChannel) key.channel();
-        try {
-            SocketChannel client = server.accept();
-            if (client == null) return;
-            client.configureBlocking(false);
-            client.register(selector, SelectionKey.OP_READ);
-            SelectionKey clientKey = client.keyFor(selector);
-            clients.add(clientKey);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void sendMessage(Connection connection, Message message) {
+        sendMessage(connection, message, null);
+    }
+
+    /**
+     * sends message to client
+     *
+     * @param connection client's connection
+     * @param message    message to be sent
+     * @param origin     client who produced the message, paused if the receiver is too slow
+     */
+    private void sendMessage(Connection connection, Message message, Connection origin) {
+        ByteBuffer buffer = message.encode();
+        if (buffer == null)
+            return;
+        if (isDebugEnabled()) logDebug("sending message to " + connection);
+        if (!connection.send(buffer, origin)) {
+            logInfo("dropping connection " + connection);
+            cleanupClientConnection(connection);
         }
     }
 
     /**
-     * reads message from key
+     * processes one frame received from client
      *
-     * @param key client's {@link SelectionKey}
-     */
-    private void readMessage(SelectionKey key) {
-        logDebug("reading message from " + key.attachment());
-        int MAX_MESSAGE_LENGTH = 100;
-        final int BUFFER_SIZE = 1024;
-        SocketChannel client = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+     * @param connection client's connection
+     * @param frame      complete frame
+     */
+    void processFrame(Connection connection, Frame frame) {
         try {
-            int numReadBytes = client.read(buffer);
-            if (shouldCloseConnection(numReadBytes)) {
-                client.close();
-                channelDisconnected(key);
-                return;
-            }
-            if (key.attachment() instanceof FileSaver) {
-                FileSaver fileSaver = (FileSaver) key.attachment();
-                logDebug("Continue saving file " + fileSaver.getPath());
-                fileSaver.save(buffer);
-            } else {
-                String text = new String(buffer.array());
-                logDebug(text.substring(0, Math.min(MAX_MESSAGE_LENGTH, text.length() - 1)));
-                Message message = parseMessage(text, key);
+            if (frame.getType() == Frame.STREAM) {
+                streamChunk(connection, frame);
+            } else if (frame.getType() == Frame.WINDOW) {
+                TransferStream stream = connection.getStreamDownloads().get(frame.getStreamId());
+                if (stream != null) {
+                    stream.grant(frame.getWindowIncrement());
+                }
+            } else if (frame.getType() == Frame.RESET) {
+                int id = frame.getStreamId();
+                TransferStream stream = connection.getStreamDownloads().remove(id);
+                if (stream != null) {
+                    stream.reset();
+                }
+                UploadWriter upload = connection.getStreamUploads().remove(id);
+                if (upload != null) {
+                    upload.finish(() -> uploadFinished(upload));
+                }
+            } else if (connection.getUpload() != null) {
+                UploadWriter upload = connection.getUpload();
+                if (isDebugEnabled()) logDebug("Continue saving file " + upload.getSaver().getPath());
+                if (frame.getType() == Frame.DATA) {
+                    upload.write(frame.getCheckedData());
+                }
+            } else if (frame.getType() == Frame.TEXT) {
+                ParseEvent parseEvent = new ParseEvent();
+                parseEvent.begin();
+                Message message = parseMessage(frame, connection);
+                parseEvent.end();
+                if (message == null) {
+                    return;
+                }
+                if (parseEvent.shouldCommit()) {
+                    parseEvent.messageType = message.getClass().getSimpleName();
+                    parseEvent.commit();
+                }
+                if (isDebugEnabled()) logDebug(message.getClass().getSimpleName() + " from " + connection);
                 if (message instanceof TextMessage) {
-                    history.add(message);
-                    broadcastExcept(key, (TextMessage) message);
+                    Room room = connection.getRoom();
+                    room.addToHistory(message);
+                    broadcastExcept(room, connection, (TextMessage) message);
                 } else if (message instanceof LoginMessage) {
-                    broadcastMessage(((LoginMessage) message).buildSystemNotification());
+                    broadcastMessage(connection.getRoom(), ((LoginMessage) message).buildSystemNotification());
+                } else if (message instanceof JoinMessage) {
+                    Room room = rooms.getOrCreate(((JoinMessage) message).getRoom());
+                    if (room != null) {
+                        switchRoom(connection, room);
+                    } else {
+                        sendReply(connection, "too many rooms, join an existing one");
+                    }
+                } else if (message instanceof LeaveMessage) {
+                    switchRoom(connection, rooms.getDefault());
+                } else if (message instanceof RoomsMessage) {
+                    sendRooms(connection);
+                } else if (message instanceof SearchMessage) {
+                    Room room = connection.getRoom();
+                    searchExecutor.execute(() -> sendSearchResults(connection, room, (SearchMessage) message));
+                } else if (message instanceof TransfersMessage) {
+                    List<String> lines = new ArrayList<>(transfers.describe());
+                    if (lines.isEmpty()) {
+                        lines.add("no transfers");
+                    }
+                    if (cache != null) {
+                        lines.add(cache.describe());
+                    }
+                    lines.add(BufferPool.SHARED.describe());
+                    lines.add(String.format("idle reaper: %d clients and %d stalled uploads disconnected",
+                            reapedClients.get(), reapedTransfers.get()));
+                    sendReply(connection, String.join("\n", lines));
                 } else if (message instanceof HistoryMessage) {
-                    sendHistory(key);
+                    sendHistory(connection, (HistoryMessage) message);
                 } else if (message instanceof OnlineMessage) {
-                    sendOnline(key);
+                    sendOnline(connection);
+                } else if (message instanceof DirectMessage) {
+                    sendDirect(connection, (DirectMessage) message);
                 } else if (message instanceof FileMessage) {
                     FileMessage fileMessage = (FileMessage) message;
                     if (fileMessage.isUploadRequest()) {
-                        initFileSaving(key, fileMessage);
+                        initFileSaving(connection, fileMessage);
                     } else {
-                        logDebug("Uploading file " + fileMessage.getId());
-                        new Thread(new FileUploadTask(client, fileMessage.getFilePath(), serverName)).start();
+                        startDownload(connection, fileMessage);
                     }
                 }
             }
         } catch (InvalidFormatException | NumberFormatException e) {
             logDebug("malformed file save command");
-            sendInvalidFormatError(key);
+            sendInvalidFormatError(connection);
         } catch (FileNotFoundException e) {
             logDebug("file not found");
-            sendNoFileError(key);
+            sendNoFileError(connection);
+        } catch (QuotaExceededException e) {
+            logInfo(e.getMessage());
+            sendReply(connection, e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            connectionFailed(connection);
+        }
+    }
+
+    /**
+     * passes a chunk of a stream upload to its writer. An empty chunk ends the upload, a corrupt one
+     * resets the stream and keeps what is written for resume, the chat connection stays
+     *
+     * @param connection uploading client
+     * @param frame      {@link Frame#STREAM} frame
+     * @throws ProtocolException if the frame has no stream id
+     */
+    private void streamChunk(Connection connection, Frame frame) throws ProtocolException {
+        int id = frame.getStreamId();
+        UploadWriter upload = connection.getStreamUploads().get(id);
+        if (upload == null) {
+            // reset meanwhile, or content the server already had
+            return;
+        }
+        try {
+            ByteBuffer data = frame.getCheckedData();
+            if (data.hasRemaining()) {
+                upload.write(data);
+                return;
+            }
+        } catch (ProtocolException e) {
+            logInfo(String.format("resetting stream %d of %s: %s", id, connection, e.getMessage()));
+            sendStreamFrame(connection, Frame.encodeControl(Frame.RESET, id, 0, BufferPool.SHARED));
+        }
+        connection.getStreamUploads().remove(id);
+        upload.finish(() -> uploadFinished(upload));
+    }
+
+    /**
+     * sends file to the client, as a stream on the chat connection if the client asked for one,
+     * otherwise over the connection the request came on, which is closed afterwards
+     *
+     * @param connection  client
+     * @param fileMessage download request
+     * @throws IOException if there is no such file or the stream id is taken
+     */
+    private void startDownload(Connection connection, FileMessage fileMessage) throws IOException {
+        int streamId = fileMessage.getStream();
+        FileRecord record = files.get(fileMessage.getId());
+        if (record == null) {
+            if (streamId >= 0) {
+                sendStreamFrame(connection, Frame.encodeControl(Frame.RESET, streamId, 0, BufferPool.SHARED));
+            }
+            throw new FileNotFoundException(String.valueOf(fileMessage.getId()));
+        }
+        logDebug("Uploading file " + record.id);
+        record.touch();
+        boolean compress = COMPRESSION && fileMessage.isCompressed();
+        if (streamId < 0) {
+            FileUploadTask task = FileUploadTask.download(connection.getChannel(), blobs.path(record.hash),
+                    record.getDownloadName(), serverName, fileMessage.getOffset(), compress);
+            useCache(task);
+            // the queued reply must not land in the middle of a frame written by the transfer
+            task.beforeSending(connection::detach);
+            connection.setSendingFile(true);
+            transfers.submit(task,
+                    position -> sendReply(connection, "download queued, position " + position),
+                    () -> cleanupClientConnection(connection));
+            return;
+        }
+        TransferStream stream = new TransferStream(streamId);
+        if (connection.getStreamDownloads().putIfAbsent(streamId, stream) != null) {
+            throw new InvalidFormatException("stream " + streamId + " is in use");
+        }
+        FileUploadTask task = FileUploadTask.download(data -> {
+            if (!connection.sendStream(data)) {
+                cleanupClientConnection(connection);
+                throw new IOException("connection to " + connection + " is broken");
+            }
+        }, stream, blobs.path(record.hash), record.getDownloadName(), serverName, fileMessage.getOffset(), compress);
+        useCache(task);
+        transfers.submit(task,
+                position -> sendReply(connection, "download queued, position " + position),
+                () -> connection.getStreamDownloads().remove(streamId, stream));
+    }
+
+    private void useCache(FileUploadTask task) {
+        if (cache != null) {
+            task.useCache(cache);
+        }
+    }
+
+    /**
+     * sends a control or reply frame of a stream, exempt from the slow consumer policy
+     *
+     * @param connection client
+     * @param frame      pooled frame
+     */
+    private void sendStreamFrame(Connection connection, ByteBuffer frame) {
+        if (!connection.sendStream(frame)) {
+            cleanupClientConnection(connection);
+        }
+    }
+
+    /**
+     * @param record stored file
+     * @return room the file was announced in
+     */
+    private Room roomOf(FileRecord record) {
+        Room room = rooms.getOrCreate(record.room);
+        return room != null ? room : rooms.getDefault();
+    }
+
+    /**
+     * starts eviction on its thread if space is taken over the high watermark
+     */
+    private void scheduleEviction() {
+        if (quota.isOverHighWatermark() && evictionScheduled.compareAndSet(false, true)) {
+            evictor.execute(this::evict);
+        }
+    }
+
+    /**
+     * frees disk space down to the low watermark, runs on the eviction thread. Blobs no file refers to go first,
+     * then interrupted uploads and files, least recently used first. A file downloaded meanwhile is kept
+     */
+    private void evict() {
+        evictionScheduled.set(false);
+        long start = System.currentTimeMillis();
+        int evictedFiles = 0;
+        int evictedParts = 0;
+        try {
+            long orphans = blobs.purgeOrphans();
+            Deque<FileRecord> records = files.records().stream()
+                    .sorted(Comparator.comparingLong(FileRecord::getLastAccess))
+                    .collect(Collectors.toCollection(ArrayDeque::new));
+            Deque<Path> parts = new ArrayDeque<>(quota.parkedParts());
+            while (quota.isOverLowWatermark() && !(records.isEmpty() && parts.isEmpty())) {
+                if (!parts.isEmpty() && (records.isEmpty()
+                        || quota.parkedAt(parts.peek()) <= records.peek().getLastAccess())) {
+                    if (quota.evictPart(parts.poll())) {
+                        evictedParts++;
+                    }
+                } else {
+                    FileRecord record = records.poll();
+                    if (record.getLastAccess() < start && evictFile(record)) {
+                        evictedFiles++;
+                    }
+                }
+            }
+            logInfo(String.format("eviction: %d bytes of orphaned blobs, %d files, %d interrupted uploads removed, " +
+                            "%d of %d bytes in use, %d ms", orphans, evictedFiles, evictedParts, quota.used(),
+                    StorageQuota.TOTAL_QUOTA, System.currentTimeMillis() - start));
         } catch (IOException e) {
             e.printStackTrace();
-            cleanupClientConnection(key, client);
         }
     }
 
-    private void sendOnline(SelectionKey key) {
-        String answer = clients.stream()
-                .filter((it) -> it.attachment() instanceof String)
-                .map((it) -> (String) it.attachment())
-                .collect(Collectors.joining("\n"));
-        sendMessage(key, new TextMessage(answer, serverName));
+    /**
+     * removes a file from the registry and its content if no other file shares it.
+     * The room it was announced in is told, so its history does not point to a missing file silently
+     *
+     * @param record least recently used file
+     * @return false if the file is removed already
+     * @throws IOException if the registry or the store cannot be written
+     */
+    private boolean evictFile(FileRecord record) throws IOException {
+        if (!files.remove(record.id)) {
+            return false;
+        }
+        quota.removed(record);
+        if (blobs.release(record.hash) && cache != null) {
+            cache.invalidate(blobs.path(record.hash));
+        }
+        Room room = roomOf(record);
+        TextMessage notice = new TextMessage(String.format("file %d (%s) was removed to free space",
+                record.id, record.getDownloadName()), serverName);
+        // the history id is part of the encoded frame, so the message gets it before it is sent
+        room.addToHistory(notice);
+        broadcastMessage(room, notice);
+        return true;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param type frame type
+     * @return read-only direct buffer with a frame without payload
+     */
+    private static ByteBuffer emptyFrame(byte type) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Frame.HEADER_SIZE);
+        Frame.writeHeader(buffer, type, 0);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * sends one-off reply to client, the frame is encoded into a pooled buffer
+     *
+     * @param connection client's connection
+     * @param text       reply text
+     */
+    private void sendReply(Connection connection, String text) {
+        ByteBuffer buffer = Frame.encodeText(new TextMessage(text, serverName).getWireText(), BufferPool.SHARED);
+        if (!connection.sendPooled(buffer)) {
+            cleanupClientConnection(connection);
+        }
+    }
+
+    private void sendOnline(Connection connection) {
+        String answer = String.join("\n", sessions.names());
+        sendReply(connection, answer);
+    }
+
+    /**
+     * delivers private message to its recipient
+     *
+     * @param connection sender
+     * @param message    private message
+     */
+    private void sendDirect(Connection connection, DirectMessage message) {
+        Connection recipient = sessions.find(message.getRecipient());
+        if (recipient == null) {
+            sendReply(connection, "user " + message.getRecipient() + " is not online");
+            return;
+        }
+        sendMessage(recipient, message, connection);
+    }
+
+    /**
+     * runs search on a search thread and sends the found messages in one batch
+     *
+     * @param connection client
+     * @param room       room the client searched in
+     * @param query      search request
+     */
+    private void sendSearchResults(Connection connection, Room room, SearchMessage query) {
+        ByteBuffer[] frames = room.search(query);
+        if (frames.length == 0) {
+            sendReply(connection, "nothing found");
+        } else if (!connection.sendBatch(frames)) {
+            logInfo("dropping connection " + connection);
+            cleanupClientConnection(connection);
+        }
     }
 
-    private void sendNoFileError(SelectionKey key) {
-        sendMessage(key, new TextMessage("no such file in system", serverName));
+    private void sendNoFileError(Connection connection) {
+        sendReply(connection, "no such file in system");
     }
 
-    private void sendInvalidFormatError(SelectionKey key) {
-        sendMessage(key, new TextMessage("Invalid format of command", serverName));
+    private void sendInvalidFormatError(Connection connection) {
+        sendReply(connection, "Invalid format of command");
     }
 
     /**
-     * initiates file upload from client
+     * initiates file upload from client. Data goes to a .part file kept after an interrupted upload,
+     * the client is told how much of it is already here and continues from there.
+     * Content the store already has is not uploaded again, the client is told it has nothing to send
      *
-     * @param key         client
+     * @param connection  client
      * @param fileMessage file command wrapper
      * @throws IOException file is unavailable
      */
-    private void initFileSaving(SelectionKey key, FileMessage fileMessage) throws IOException {
-        FileSaver fileSaver = new FileSaver(fileMessage.getFileName());
-        key.attach(fileSaver);
+    private void initFileSaving(Connection connection, FileMessage fileMessage) throws IOException {
+        int stream = fileMessage.getStream();
+        if (stream >= 0 && (fileMessage.getSize() < 0 || connection.getStreamUploads().containsKey(stream))) {
+            throw new InvalidFormatException("stream " + stream + " is in use or has no size");
+        }
+        String user = uploader(connection, fileMessage);
+        if (user == null) {
+            sendReply(connection, "upload rejected: " + fileMessage.getAuthor() + " is not logged in from this address");
+            return;
+        }
+        String hash = fileMessage.getHash();
+        if (hash != null && blobs.retain(hash)) {
+            Path blob = blobs.path(hash);
+            logDebug("File " + fileMessage.getFileName() + " is already stored as " + blob);
+            long size = Files.size(blob);
+            try {
+                quota.admitShared(user, size);
+            } catch (QuotaExceededException e) {
+                blobs.release(hash);
+                throw rejected(connection, stream, e);
+            }
+            FileRecord record = registerFile(fileMessage, blob, hash, size);
+            sendResume(connection, size, false, stream);
+            announceFile(fileMessage, record);
+            return;
+        }
+        Path partPath = Paths.get(fileMessage.getFileName() + PART_SUFFIX);
+        if (!activeParts.add(partPath)) {
+            // e.g. a resume arriving before the broken connection is reaped
+            if (stream >= 0) {
+                sendStreamFrame(connection, Frame.encodeControl(Frame.RESET, stream, 0, BufferPool.SHARED));
+            }
+            sendReply(connection, "upload of " + fileMessage.getFileName() + " is already in progress, try again later");
+            return;
+        }
+        try {
+            // admitted before the part is looked at, eviction leaves a reserved part alone
+            quota.admit(user, partPath, Math.max(0, fileMessage.getSize()));
+        } catch (QuotaExceededException e) {
+            activeParts.remove(partPath);
+            throw rejected(connection, stream, e);
+        }
+        scheduleEviction();
+        long offset = 0;
+        if (fileMessage.getSize() >= 0 && Files.exists(partPath) && Files.size(partPath) <= fileMessage.getSize()) {
+            offset = Files.size(partPath);
+        }
+        FileSaver fileSaver;
+        try {
+            fileSaver = new FileSaver(partPath, offset);
+        } catch (IOException e) {
+            quota.completed(partPath);
+            activeParts.remove(partPath);
+            throw e;
+        }
+        fileSaver.computeHash();
+        // compression is agreed in the resume reply, older clients get none
+        boolean compressed = COMPRESSION && fileMessage.isCompressed() && fileMessage.getSize() >= 0;
+        if (compressed) {
+            fileSaver.setCompressed();
+        }
+        UploadWriter upload = new UploadWriter(fileSaver, connection, diskWriters, stream,
+                (writer, e) -> uploadFailed(connection, stream, writer, e));
+        if (stream >= 0) {
+            connection.getStreamUploads().put(stream, upload);
+        } else {
+            connection.setUpload(upload);
+        }
         fileSaver.setMessage(fileMessage);
-        Path savedFilePath = fileSaver.getPath();
-        fileMessage.setFilePath(savedFilePath);
-        logDebug("File will be saved " + savedFilePath.toAbsolutePath());
+        logDebug("File will be saved " + partPath.toAbsolutePath() + " from offset " + offset);
+        if (fileMessage.getSize() >= 0) {
+            // older clients do not tell the size and do not wait for the offset
+            sendResume(connection, offset, compressed, stream);
+        }
     }
 
     /**
-     * Broadcasts message to all logged in clients
+     * finds the user an upload is charged to. A stream upload comes on the uploader's chat connection.
+     * A legacy upload has a connection of its own where the client does not log in, its author is trusted
+     * only if that user is logged in from the same address
      *
+     * @param connection  uploading connection
+     * @param fileMessage upload command
+     * @return login of the uploader, null if the author is not logged in from the connection's address
+     * @throws IOException if the addresses cannot be read
+     */
+    private String uploader(Connection connection, FileMessage fileMessage) throws IOException {
+        if (connection.isLoggedIn()) {
+            return connection.getName();
+        }
+        Connection session = sessions.find(fileMessage.getAuthor());
+        InetAddress address = session != null ? remoteAddress(session) : null;
+        return address != null && address.equals(remoteAddress(connection)) ? session.getName() : null;
+    }
+
+    /**
+     * @return address of the client, null if the connection is closed
+     */
+    private static InetAddress remoteAddress(Connection connection) throws IOException {
+        InetSocketAddress remote = (InetSocketAddress) connection.getChannel().getRemoteAddress();
+        return remote != null ? remote.getAddress() : null;
+    }
+
+    /**
+     * aborts the stream of a rejected upload, the client gets the reason as a reply
+     *
+     * @param connection uploading client
+     * @param stream     stream of the upload, -1 if it has a connection of its own
+     * @param e          reason
+     * @return the reason to throw
+     */
+    private QuotaExceededException rejected(Connection connection, int stream, QuotaExceededException e) {
+        if (stream >= 0) {
+            sendStreamFrame(connection, Frame.encodeControl(Frame.RESET, stream, 0, BufferPool.SHARED));
+        }
+        return e;
+    }
+
+    /**
+     * tells uploading client where to continue from
+     *
+     * @param connection uploading client
+     * @param offset     bytes of the file the server has
+     * @param compressed true if the server takes deflated chunks
+     * @param stream     stream of the upload, -1 if it has a connection of its own
+     */
+    private void sendResume(Connection connection, long offset, boolean compressed, int stream) {
+        String text = String.format("%s %d%s%s\n", FileUploadTask.RESUME_COMMAND, offset,
+                compressed ? " " + ChunkCompressor.TOKEN : "",
+                stream >= 0 ? " " + TransferStream.TOKEN_PREFIX + stream : "");
+        ByteBuffer reply = Frame.encodeText(text, BufferPool.SHARED);
+        if (stream >= 0) {
+            sendStreamFrame(connection, reply);
+        } else if (!connection.sendPooled(reply)) {
+            cleanupClientConnection(connection);
+        }
+    }
+
+    /**
+     * Broadcasts message to all subscribers of the room
+     *
+     * @param room room to post to
      * @param text message to be sent
      */
-    private void broadcast(String text) {
-        clients.stream()
-                .filter((key -> key.attachment() instanceof String))
-                .forEach((client) -> sendMessage(client, new TextMessage(text, serverName)));
+    private void broadcast(Room room, String text) {
+        broadcastMessage(room, new TextMessage(text, serverName));
     }
 
     /**
-     * Broadcasts message to all logged in clients
+     * Broadcasts message to all subscribers of the room
      *
+     * @param room        room to post to
      * @param textMessage message to be sent
      */
-    private void broadcastMessage(TextMessage textMessage) {
-        clients.stream()
-                .filter((key -> key.attachment() instanceof String))
-                .forEach((client) -> sendMessage(client, textMessage));
+    private void broadcastMessage(Room room, TextMessage textMessage) {
+        broadcastExcept(room, null, textMessage);
     }
 
     /**
-     * closes connections after client disconnected
+     * stops an upload whose chunk cannot be written, runs on a disk writer thread. A stream upload is reset,
+     * an upload on its own connection loses the connection. The written part is kept for resume
      *
-     * @param key    client's {@link SelectionKey}
-     * @param client key's channel
+     * @param connection uploading client
+     * @param stream     stream of the upload, -1 if it has a connection of its own
+     * @param upload     failed upload
+     * @param e          reason
      */
-    private void cleanupClientConnection(SelectionKey key, SocketChannel client) {
+    private void uploadFailed(Connection connection, int stream, UploadWriter upload, IOException e) {
+        logInfo(String.format("upload of %s failed at %d bytes: %s", upload.getSaver().getPath(),
+                upload.getSaver().getWritten(), e.getMessage()));
+        if (stream < 0) {
+            cleanupClientConnection(connection);
+        } else if (connection.getStreamUploads().remove(stream, upload)) {
+            sendStreamFrame(connection, Frame.encodeControl(Frame.RESET, stream, 0, BufferPool.SHARED));
+            upload.finish(() -> uploadFinished(upload));
+        }
+    }
+
+    /**
+     * closes a connection which broke or misbehaved. Unlike a client closing the connection itself,
+     * this does not end its uploads as complete: an upload without a size would be stored truncated
+     *
+     * @param connection client's connection
+     */
+    void connectionFailed(Connection connection) {
+        UploadWriter upload = connection.getUpload();
+        if (upload != null) {
+            upload.abort();
+        }
+        connection.getStreamUploads().values().forEach(UploadWriter::abort);
+        cleanupClientConnection(connection);
+    }
+
+    /**
+     * closes connections after client disconnected. Safe to call more than once and from any thread
+     *
+     * @param connection client's connection
+     */
+    void cleanupClientConnection(Connection connection) {
+        if (!clients.remove(connection)) {
+            return;
+        }
+        sessions.unregister(connection);
+        Room room = connection.getRoom();
+        if (room != null) {
+            room.leave(connection);
+        }
+        connection.close();
         try {
-            clients.remove(key);
-            channelDisconnected(key);
-            client.close();
+            connection.getChannel().close();
         } catch (IOException e1) {
             e1.printStackTrace();
         }
+        channelDisconnected(connection);
     }
 
     /**
-     * broadcasts disconnect message or finishes file upload
+     * broadcasts disconnect message, finishes file uploads and stops downloads
      *
-     * @param key disconnected one
+     * @param connection disconnected one
      */
-    private void channelDisconnected(SelectionKey key) {
-        if (key.attachment() instanceof String)
-            broadcastExcept(key, new TextMessage(key.attachment() + " disconnected", serverName));
-        if (key.attachment() instanceof FileSaver) {
-            FileSaver fileSaver = (FileSaver) key.attachment();
-            FileMessage fileMessage = fileSaver.getMessage();
-            fileSaver.finish();
-            broadcast(String.format("%s uploaded file %d", fileMessage.getAuthor(), fileMessage.getId()));
-            history.add(fileMessage);
+    private void channelDisconnected(Connection connection) {
+        Room room = connection.getRoom();
+        if (room != null)
+            broadcastExcept(room, connection, new TextMessage(connection.getName() + " disconnected", serverName));
+        UploadWriter upload = connection.getUpload();
+        if (upload != null) {
+            upload.finish(() -> uploadFinished(upload));
+        }
+        connection.getStreamDownloads().values().forEach(TransferStream::reset);
+        connection.getStreamDownloads().clear();
+        for (UploadWriter streamUpload : connection.getStreamUploads().values()) {
+            streamUpload.finish(() -> uploadFinished(streamUpload));
         }
+        connection.getStreamUploads().clear();
     }
 
     /**
-     * sends message history
+     * moves file to the blob store after its last byte is on disk, runs on a disk writer thread.
+     * An incomplete or failed file stays as .part until the client continues the upload,
+     * which may start once this one has released the part
      *
-     * @param key client
+     * @param upload ended upload
      */
-    private void sendHistory(SelectionKey key) {
-        history.forEach((message -> sendMessage(key, message)));
+    private void uploadFinished(UploadWriter upload) {
+        try {
+            storeUpload(upload);
+        } finally {
+            activeParts.remove(upload.getSaver().getPath());
+        }
+    }
+
+    private void storeUpload(UploadWriter upload) {
+        FileSaver saver = upload.getSaver();
+        FileMessage fileMessage = saver.getMessage();
+        if (upload.isFailed() || fileMessage.getSize() >= 0 && saver.getWritten() < fileMessage.getSize()) {
+            logInfo(upload.isFailed()
+                    ? String.format("upload of %s failed at %d bytes, not stored", fileMessage.getFileName(), saver.getWritten())
+                    : String.format("upload of %s interrupted at %d of %d bytes, kept for resume",
+                    fileMessage.getFileName(), saver.getWritten(), fileMessage.getSize()));
+            quota.parked(saver.getPath(), saver.getWritten());
+            return;
+        }
+        FileRecord record;
+        try {
+            String hash = saver.getHash();
+            if (fileMessage.getHash() != null && !fileMessage.getHash().equals(hash)) {
+                logInfo(String.format("%s does not match the hash told by the client, stored as %s",
+                        fileMessage.getFileName(), hash));
+            }
+            Path blob = blobs.store(saver.getPath(), hash);
+            quota.completed(saver.getPath());
+            record = registerFile(fileMessage, blob, hash, saver.getWritten());
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (Files.exists(saver.getPath())) {
+                quota.parked(saver.getPath(), saver.getWritten());
+            } else {
+                quota.completed(saver.getPath());
+            }
+            return;
+        }
+        announceFile(fileMessage, record);
     }
 
     /**
-     * parses message
+     * gives stored file its id
      *
-     * @param text raw message
-     * @param key  client
-     * @return message wrapper object
-     * @throws InvalidFormatException when command has invalid format
-     * @throws FileNotFoundException  when file command contains file that not exists
+     * @param fileMessage upload command
+     * @param blob        stored content
+     * @param hash        SHA-256 of the content
+     * @param size        file size
+     * @return new record
+     * @throws IOException if the file index cannot be written
      */
-    private Message parseMessage(String text, SelectionKey key) throws InvalidFormatException, FileNotFoundException {
-        if (text.startsWith("/login")) {
-            LoginMessage message = LoginMessage.parse(text);
-            key.attach(message.author);
-            return message;
-        } else if (text.startsWith("/history")) {
-            return new HistoryMessage(((String) key.attachment()));
-        } else if (text.startsWith("/file")) {
-            return FileMessage.parse(text, (String) key.attachment());
-        } else if (text.startsWith("/download")) {
-            return FileMessage.parseDownloadRequest(text, serverName);
-        } else if (text.startsWith("/online")) {
-            return new OnlineMessage(((String) key.attachment()));
-        } else {
-            return new TextMessage(text, ((String) key.attachment()));
+    private FileRecord registerFile(FileMessage fileMessage, Path blob, String hash, long size) throws IOException {
+        // uploads come on a separate connection, the file goes to the room its author is in
+        Connection author = sessions.find(fileMessage.getAuthor());
+        Room target = author != null && author.getRoom() != null ? author.getRoom() : rooms.getDefault();
+        FileRecord record = files.register(fileMessage.getCleanFileName(), fileMessage.getAuthor(), target.getName(),
+                size, hash);
+        quota.added(record);
+        fileMessage.setId(record.id);
+        fileMessage.setFilePath(blob);
+        scheduleEviction();
+        return record;
+    }
+
+    /**
+     * announces uploaded file in the room of its author
+     *
+     * @param fileMessage upload command
+     * @param record      stored file
+     */
+    private void announceFile(FileMessage fileMessage, FileRecord record) {
+        Room target = roomOf(record);
+        broadcast(target, String.format("%s uploaded file %d", fileMessage.getAuthor(), fileMessage.getId()));
+        try {
+            target.addToHistory(fileMessage);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Broadcasts message to all logged clients except one
+     * sends a page of client's room history in one batch, straight from the mapped log
      *
-     * @param key         exception client
-     * @param textMessage message to be sent
+     * @param connection client
+     * @param query      requested page
      */
-    private void broadcastExcept(SelectionKey key, TextMessage textMessage) {
-        clients.stream()
-                .filter((key1 -> key1.attachment() instanceof String))
-                .forEach((client) -> {
-                    if (client != key) {
-                        sendMessage(client, textMessage);
-                    }
-                });
+    private void sendHistory(Connection connection, HistoryMessage query) {
+        if (!connection.sendBatch(connection.getRoom().history(query))) {
+            logInfo("dropping connection " + connection);
+            cleanupClientConnection(connection);
+        }
     }
 
     /**
-     * defines should the channel be closed
+     * parses message
      *
-     * @param numReadBytes read bytes from the channel
-     * @return should close this channel
+     * @param frame      text frame
+     * @param connection client
+     * @return message wrapper object
+     * @throws InvalidFormatException when command has invalid format
+     * @throws FileNotFoundException  when file command contains file that not exists
      */
-    private boolean shouldCloseConnection(int numReadBytes) {
-        boolean remoteClientClosedConnection = numReadBytes == -1;
-        if (remoteClientClosedConnection) {
-            logDebug("Client closed connection");
-            return true;
+    private Message parseMessage(Frame frame, Connection connection) throws InvalidFormatException, FileNotFoundException {
+        CommandParser parser = commands.lookup(frame.getPayload());
+        if (parser != null) {
+            return parser.parse(frame, connection);
+        }
+        if (!connection.isLoggedIn()) {
+            sendLoginRequired(connection);
+            return null;
+        }
+        return new TextMessage(frame.getText(), connection.getName());
+    }
+
+    /**
+     * Broadcasts message to all subscribers of the room except one
+     *
+     * @param room        room to post to
+     * @param sender      exception client, null to send to everyone
+     * @param textMessage message to be sent
+     */
+    private void broadcastExcept(Room room, Connection sender, TextMessage textMessage) {
+        BroadcastEvent event = new BroadcastEvent();
+        event.begin();
+        int recipients = 0;
+        for (Connection client : room.subscribers()) {
+            if (client != sender) {
+                sendMessage(client, textMessage, sender);
+                recipients++;
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room.getName();
+            event.recipients = recipients;
+            event.bytes = textMessage.encode().remaining();
+            event.commit();
         }
-        return false;
     }
 }
@@ -0,0 +1,15 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Accepts connections and moves bytes between clients and the {@link Server}
+ */
+interface ServerEngine {
+    /**
+     * serves clients on the current thread, never returns normally
+     *
+     * @throws IOException if the server socket is unavailable
+     */
+    void run() throws IOException;
+}
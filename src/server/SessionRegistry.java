@@ -0,0 +1,56 @@
+package server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Logged in clients indexed by user name
+ */
+class SessionRegistry {
+    private final ConcurrentMap<String, Connection> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * binds name to the connection. The first login wins, later logins with the same name are rejected
+     *
+     * @param name       user name
+     * @param connection client's connection
+     * @return false if the name is already taken
+     */
+    boolean register(String name, Connection connection) {
+        return sessions.putIfAbsent(name, connection) == null;
+    }
+
+    /**
+     * @param connection disconnected client, ignored if it has not logged in
+     */
+    void unregister(Connection connection) {
+        String name = connection.getName();
+        if (name != null) {
+            sessions.remove(name, connection);
+        }
+    }
+
+    /**
+     * @param name user name
+     * @return user's connection or null if user is offline
+     */
+    Connection find(String name) {
+        return sessions.get(name);
+    }
+
+    /**
+     * @return live view of logged in connections
+     */
+    Collection<Connection> connections() {
+        return sessions.values();
+    }
+
+    /**
+     * @return live view of online user names
+     */
+    Set<String> names() {
+        return sessions.keySet();
+    }
+}
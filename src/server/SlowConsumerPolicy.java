@@ -0,0 +1,19 @@
+package server;
+
+/**
+ * What to do when a client does not read fast enough and its outbound queue is over the limit
+ */
+enum SlowConsumerPolicy {
+    /**
+     * drop the oldest queued messages which were not started yet
+     */
+    DROP_OLDEST,
+    /**
+     * disconnect the slow client
+     */
+    DROP_CONNECTION,
+    /**
+     * keep queueing and stop reading from the client who produced the message until the queue drains
+     */
+    BLOCK_SENDER
+}
@@ -0,0 +1,234 @@
+package server;
+
+import server.FileRegistry.FileRecord;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk space of stored files. Uploads are admitted by their declared size against a quota per user
+ * and a total one. Space is counted as blobs on disk plus uploads in progress, which reserve their size
+ * until they are stored. An interrupted upload keeps its .part file reserved until it is continued or evicted.
+ * A user owns the sizes of the files they uploaded, shared content counts for every uploader
+ */
+class StorageQuota {
+    /**
+     * bytes one user may store, 0 for no limit
+     */
+    static final long USER_QUOTA = Long.getLong("server.quota.user", 0);
+    /**
+     * bytes all files may take on disk, 0 for no limit
+     */
+    static final long TOTAL_QUOTA = Long.getLong("server.quota.total", 0);
+    /**
+     * share of {@link #TOTAL_QUOTA} which starts eviction
+     */
+    static final double HIGH_WATERMARK = Double.parseDouble(System.getProperty("server.quota.high", "0.9"));
+    /**
+     * share of {@link #TOTAL_QUOTA} eviction frees space down to
+     */
+    static final double LOW_WATERMARK = Double.parseDouble(System.getProperty("server.quota.low", "0.75"));
+
+    private final BlobStore blobs;
+    /**
+     * bytes of stored files by uploader, guarded by this
+     */
+    private final Map<String, Long> owned = new HashMap<>();
+    /**
+     * uploads in progress and interrupted ones by .part file, guarded by this
+     */
+    private final Map<Path, Reservation> reservations = new HashMap<>();
+    private long reserved;
+
+    /**
+     * @param blobs store whose size is counted
+     */
+    StorageQuota(BlobStore blobs) {
+        this.blobs = blobs;
+    }
+
+    /**
+     * reserves space for an upload, taking over the reservation of its interrupted part
+     *
+     * @param user uploader
+     * @param part file the upload is written to
+     * @param size declared size, 0 if the client did not tell it
+     * @throws QuotaExceededException if the upload does not fit the user's or the total quota
+     */
+    synchronized void admit(String user, Path part, long size) throws QuotaExceededException {
+        Reservation previous = reservations.get(part);
+        long kept = previous != null ? previous.bytes : 0;
+        if (USER_QUOTA > 0 && usage(user) - kept + size > USER_QUOTA) {
+            throw new QuotaExceededException(String.format("upload rejected: %s stores %d of %d bytes allowed",
+                    user, usage(user) - kept, USER_QUOTA));
+        }
+        if (TOTAL_QUOTA > 0 && used() - kept + size > TOTAL_QUOTA) {
+            throw new QuotaExceededException(String.format("upload rejected: server storage is full (%d of %d bytes)",
+                    used() - kept, TOTAL_QUOTA));
+        }
+        release(part);
+        reserve(part, new Reservation(user, size));
+    }
+
+    /**
+     * checks that a file with content already stored fits the user's quota, it takes no disk space
+     *
+     * @param user uploader
+     * @param size file size
+     * @throws QuotaExceededException if the file does not fit the user's quota
+     */
+    synchronized void admitShared(String user, long size) throws QuotaExceededException {
+        if (USER_QUOTA > 0 && usage(user) + size > USER_QUOTA) {
+            throw new QuotaExceededException(String.format("upload rejected: %s stores %d of %d bytes allowed",
+                    user, usage(user), USER_QUOTA));
+        }
+    }
+
+    /**
+     * upload stopped before its end, the part stays reserved by its size on disk and may be evicted
+     *
+     * @param part    file of the upload
+     * @param written bytes in the part
+     */
+    synchronized void parked(Path part, long written) {
+        Reservation reservation = release(part);
+        reserve(part, new Reservation(reservation != null ? reservation.user : null, written, System.currentTimeMillis()));
+    }
+
+    /**
+     * upload is stored in the blob store, its reservation ends
+     *
+     * @param part file of the upload
+     */
+    synchronized void completed(Path part) {
+        release(part);
+    }
+
+    synchronized void added(FileRecord record) {
+        owned.merge(record.uploader, record.size, Long::sum);
+    }
+
+    synchronized void removed(FileRecord record) {
+        owned.computeIfPresent(record.uploader, (user, bytes) -> bytes > record.size ? bytes - record.size : null);
+    }
+
+    /**
+     * @return bytes taken by blobs and reserved by uploads
+     */
+    synchronized long used() {
+        return blobs.size() + reserved;
+    }
+
+    /**
+     * @param user uploader
+     * @return bytes of the user's files and uploads
+     */
+    synchronized long usage(String user) {
+        long bytes = owned.getOrDefault(user, 0L);
+        for (Reservation reservation : reservations.values()) {
+            if (user.equals(reservation.user)) {
+                bytes += reservation.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return true if space is taken over the high watermark and eviction should run
+     */
+    boolean isOverHighWatermark() {
+        return TOTAL_QUOTA > 0 && used() > TOTAL_QUOTA * HIGH_WATERMARK;
+    }
+
+    /**
+     * @return true while eviction has not freed enough space
+     */
+    boolean isOverLowWatermark() {
+        return TOTAL_QUOTA > 0 && used() > TOTAL_QUOTA * LOW_WATERMARK;
+    }
+
+    /**
+     * @return interrupted uploads, longest idle first
+     */
+    synchronized List<Path> parkedParts() {
+        List<Path> parts = new ArrayList<>();
+        reservations.forEach((part, reservation) -> {
+            if (reservation.parkedAt > 0) {
+                parts.add(part);
+            }
+        });
+        parts.sort(Comparator.comparingLong(part -> reservations.get(part).parkedAt));
+        return parts;
+    }
+
+    /**
+     * @param part interrupted upload
+     * @return time the upload was interrupted, epoch ms, 0 if it is continued meanwhile or gone
+     */
+    synchronized long parkedAt(Path part) {
+        Reservation reservation = reservations.get(part);
+        return reservation != null ? reservation.parkedAt : 0;
+    }
+
+    /**
+     * deletes an interrupted upload unless it is continued meanwhile. The lock is held while deleting,
+     * so a continued upload never finds its part half gone
+     *
+     * @param part interrupted upload
+     * @return false if the upload is continued meanwhile
+     * @throws IOException if the part cannot be deleted
+     */
+    synchronized boolean evictPart(Path part) throws IOException {
+        Reservation reservation = reservations.get(part);
+        if (reservation == null || reservation.parkedAt == 0) {
+            return false;
+        }
+        Files.deleteIfExists(part);
+        release(part);
+        return true;
+    }
+
+    private void reserve(Path part, Reservation reservation) {
+        reservations.put(part, reservation);
+        reserved += reservation.bytes;
+    }
+
+    private Reservation release(Path part) {
+        Reservation reservation = reservations.remove(part);
+        if (reservation != null) {
+            reserved -= reservation.bytes;
+        }
+        return reservation;
+    }
+
+    /**
+     * space held by one upload
+     */
+    private static final class Reservation {
+        /**
+         * uploader, null for parts found at startup
+         */
+        final String user;
+        final long bytes;
+        /**
+         * when the upload was interrupted, epoch ms, 0 while it runs
+         */
+        final long parkedAt;
+
+        Reservation(String user, long bytes) {
+            this(user, bytes, 0);
+        }
+
+        Reservation(String user, long bytes, long parkedAt) {
+            this.user = user;
+            this.bytes = bytes;
+            this.parkedAt = parkedAt;
+        }
+    }
+}
@@ -18,4 +18,9 @@ public class TextMessage extends Message {
     public String getFullText() {
         return author + ": " + text;
     }
+
+    @Override
+    String getWireText() {
+        return getFullText() + "\n";
+    }
 }
@@ -0,0 +1,10 @@
+package server;
+
+/**
+ * wrapper for /transfers command
+ */
+class TransfersMessage extends Message {
+    TransfersMessage(String author) {
+        super(author);
+    }
+}
@@ -0,0 +1,213 @@
+package server;
+
+import common.BufferPool;
+import common.Frame;
+import common.TransferStream;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Writes one upload to disk on the disk writer threads. Chunks are copied into pooled buffers
+ * and written in arrival order, at most one writer works on the file at a time.
+ * When too much data waits for the disk the client's reads are paused, so a slow disk turns
+ * into TCP backpressure instead of blocking the I/O thread.
+ * A stream upload shares the connection with chat, so its reads are never paused: every written chunk
+ * is granted back to the client with a {@link Frame#WINDOW} frame instead.
+ * A chunk which cannot be written fails the upload: later chunks are dropped, nothing more is granted
+ * and the file is not stored
+ */
+class UploadWriter implements Runnable {
+    /**
+     * bytes waiting for the disk before reads from the uploader are paused
+     */
+    static final int QUEUE_LIMIT = Integer.getInteger("server.upload.queueLimit", 4 * 1024 * 1024);
+
+    private final FileSaver saver;
+    private final Connection connection;
+    private final Executor executor;
+    /**
+     * stream of the upload on the chat connection, -1 if the upload has a connection of its own
+     */
+    private final int stream;
+    /**
+     * chunks not written yet. Guarded by this
+     */
+    private final Queue<ByteBuffer> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    /**
+     * true while the task is submitted to the executor
+     */
+    private boolean scheduled;
+    private boolean paused;
+    /**
+     * called after the last chunk is written and the file is closed, null until the upload ends
+     */
+    private Runnable onFinished;
+    /**
+     * called on a disk writer thread when a chunk cannot be written
+     */
+    private final BiConsumer<UploadWriter, IOException> onError;
+    /**
+     * true if the upload did not end as the client meant, its file must not be stored
+     */
+    private volatile boolean failed;
+    /**
+     * true after a chunk could not be written, later chunks would leave a gap in the file. Disk writer only
+     */
+    private boolean writeFailed;
+
+    /**
+     * @param saver      destination file
+     * @param connection uploading client
+     * @param executor   disk writer threads
+     * @param stream     stream id, -1 for an upload on its own connection
+     * @param onError    stops the transfer after a chunk cannot be written
+     */
+    UploadWriter(FileSaver saver, Connection connection, Executor executor, int stream,
+                 BiConsumer<UploadWriter, IOException> onError) {
+        this.saver = saver;
+        this.connection = connection;
+        this.executor = executor;
+        this.stream = stream;
+        this.onError = onError;
+    }
+
+    FileSaver getSaver() {
+        return saver;
+    }
+
+    /**
+     * marks the upload broken, e.g. after its connection failed. Chunks already received are still written,
+     * but the file is kept as a part and not stored
+     */
+    void abort() {
+        failed = true;
+    }
+
+    /**
+     * @return true if a chunk could not be written or the upload is aborted
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true while reads are paused waiting for the disk
+     */
+    synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * queues a copy of the chunk, pausing reads from the client if the queue is over the limit.
+     * Called by the thread reading from the client
+     *
+     * @param data chunk of the file between position and limit, not modified
+     * @throws ProtocolException if a stream upload sends more than it was granted
+     */
+    void write(ByteBuffer data) throws ProtocolException {
+        ByteBuffer copy = BufferPool.SHARED.acquire(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        boolean pause = false;
+        synchronized (this) {
+            if (stream >= 0 && queuedBytes + copy.remaining() > TransferStream.INITIAL_WINDOW) {
+                BufferPool.SHARED.release(copy);
+                throw new ProtocolException("stream " + stream + " exceeds its window");
+            }
+            queue.add(copy);
+            queuedBytes += copy.remaining();
+            if (stream < 0 && !paused && queuedBytes > QUEUE_LIMIT) {
+                paused = pause = true;
+            }
+            schedule();
+        }
+        if (pause) {
+            connection.pauseReads();
+        }
+    }
+
+    /**
+     * closes the file once everything queued is written
+     *
+     * @param onFinished called on a disk writer thread after the file is closed
+     */
+    synchronized void finish(Runnable onFinished) {
+        this.onFinished = onFinished;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * writes queued chunks until the queue is empty
+     */
+    @Override
+    public void run() {
+        while (true) {
+            ByteBuffer buffer;
+            Runnable finished = null;
+            synchronized (this) {
+                buffer = queue.poll();
+                if (buffer == null) {
+                    scheduled = false;
+                    if (onFinished == null) {
+                        return;
+                    }
+                    finished = onFinished;
+                    onFinished = null;
+                }
+            }
+            if (finished != null) {
+                saver.finish();
+                finished.run();
+                return;
+            }
+            boolean written = save(buffer);
+            boolean resume = false;
+            synchronized (this) {
+                queuedBytes -= buffer.limit();
+                if (paused && queuedBytes <= QUEUE_LIMIT / 2) {
+                    paused = false;
+                    resume = true;
+                }
+            }
+            if (written && stream >= 0) {
+                // granted only after the chunk left the queue, so the client never overfills it
+                connection.sendStream(Frame.encodeControl(Frame.WINDOW, stream, buffer.limit(), BufferPool.SHARED));
+            }
+            BufferPool.SHARED.release(buffer);
+            if (resume) {
+                connection.resumeReads();
+            }
+        }
+    }
+
+    /**
+     * @return false if the chunk is not written, the upload has failed
+     */
+    private boolean save(ByteBuffer buffer) {
+        if (writeFailed) {
+            return false;
+        }
+        try {
+            saver.save(buffer);
+            return true;
+        } catch (IOException e) {
+            writeFailed = failed = true;
+            onError.accept(this, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package common;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Assertions of the unit tests, which run as plain programs without a test framework.
+ * A failed assertion throws {@link AssertionError} and ends the test run
+ */
+public final class Assert {
+    private Assert() {
+    }
+
+    /**
+     * code expected to throw
+     */
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    public static void assertTrue(String message, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void assertEquals(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError("expected " + expected + " but was " + actual);
+        }
+    }
+
+    public static void assertEquals(long expected, long actual) {
+        if (expected != actual) {
+            throw new AssertionError("expected " + expected + " but was " + actual);
+        }
+    }
+
+    public static void assertArrayEquals(long[] expected, long[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError("expected " + Arrays.toString(expected) + " but was " + Arrays.toString(actual));
+        }
+    }
+
+    /**
+     * @param type   expected exception type
+     * @param action code under test
+     * @param <T>    exception type
+     * @return the thrown exception
+     */
+    public static <T extends Throwable> T assertThrows(Class<T> type, Action action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError("expected " + type.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + " to be thrown");
+    }
+}
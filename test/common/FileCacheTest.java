@@ -0,0 +1,118 @@
+package common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertTrue;
+
+/**
+ * Hot-file cache: content, size threshold and W-TinyLFU admission
+ */
+public class FileCacheTest {
+    private static final int FILE_SIZE = 30_000;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("file-cache-test");
+        try {
+            servesContentAndCountsHits(dir);
+            skipsLargeFiles(dir);
+            readsSmallFileOnSecondRequest(dir);
+            coldFileDoesNotDisplacePopularOnes(dir);
+            invalidatedFileIsReadAgain(dir);
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+        System.out.println("FileCacheTest passed");
+    }
+
+    private static void servesContentAndCountsHits(Path dir) throws IOException {
+        FileCache cache = new FileCache(100_000, 40_000);
+        byte[] content = bytes(1);
+        Path file = Files.write(dir.resolve("a"), content);
+        assertEquals(ByteBuffer.wrap(content), cache.get(file));
+        ByteBuffer cached = cache.get(file);
+        assertEquals(ByteBuffer.wrap(content), cached);
+        assertTrue("cached content is read-only", cached.isReadOnly());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        cache.served(cached.remaining());
+        assertEquals(FILE_SIZE, cache.getServedBytes());
+    }
+
+    private static void skipsLargeFiles(Path dir) throws IOException {
+        FileCache cache = new FileCache(100_000, 10_000);
+        Path file = Files.write(dir.resolve("large"), bytes(2));
+        assertTrue("file over the size threshold is read from disk", cache.get(file) == null);
+        assertTrue("file over the size threshold is read from disk", cache.get(file) == null);
+        assertEquals(0, cache.getHits());
+    }
+
+    /**
+     * a file small enough for the window is not read into memory for a one-off download
+     */
+    private static void readsSmallFileOnSecondRequest(Path dir) throws IOException {
+        FileCache cache = new FileCache(100_000, 40_000);
+        byte[] content = Arrays.copyOf(bytes(3), 500);
+        Path file = Files.write(dir.resolve("small"), content);
+        assertTrue("first request is served from disk", cache.get(file) == null);
+        assertEquals(ByteBuffer.wrap(content), cache.get(file));
+        assertEquals(ByteBuffer.wrap(content), cache.get(file));
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * the main space holds three files. A fourth file requested once is not admitted over them,
+     * it gets in once it is requested more often than the least popular of them
+     */
+    private static void coldFileDoesNotDisplacePopularOnes(Path dir) throws IOException {
+        FileCache cache = new FileCache(100_000, 40_000);
+        Path[] popular = new Path[3];
+        for (int i = 0; i < popular.length; i++) {
+            popular[i] = Files.write(dir.resolve("popular" + i), bytes(10 + i));
+            for (int request = 0; request < 3; request++) {
+                cache.get(popular[i]);
+            }
+        }
+        long hits = cache.getHits();
+        Path cold = Files.write(dir.resolve("cold"), bytes(20));
+        assertTrue("rejected file is served from disk", cache.get(cold) == null);
+        for (Path file : popular) {
+            cache.get(file);
+        }
+        assertEquals(hits + popular.length, cache.getHits());
+
+        long before = cache.getHits();
+        for (int request = 0; request < 10 && cache.getHits() == before; request++) {
+            cache.get(cold);
+        }
+        assertEquals(before + 1, cache.getHits());
+        assertTrue("admission is counted: " + cache.describe(), !cache.describe().contains(" 0 rejected"));
+    }
+
+    private static void invalidatedFileIsReadAgain(Path dir) throws IOException {
+        FileCache cache = new FileCache(100_000, 40_000);
+        Path file = Files.write(dir.resolve("replaced"), bytes(30));
+        cache.get(file);
+        cache.invalidate(file);
+        byte[] replaced = bytes(31);
+        Files.write(file, replaced);
+        assertEquals(ByteBuffer.wrap(replaced), cache.get(file));
+        assertEquals(0, cache.getHits());
+    }
+
+    private static byte[] bytes(long seed) {
+        byte[] bytes = new byte[FILE_SIZE];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,142 @@
+package common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertThrows;
+import static common.Assert.assertTrue;
+
+/**
+ * Frame codec: frames survive any split or coalescing of the byte stream
+ */
+public class FrameDecoderTest {
+    public static void main(String[] args) throws Exception {
+        decodesFrameSplitIntoSingleBytes();
+        decodesCoalescedFrames();
+        growsForFrameLargerThanBuffer();
+        rejectsUnknownVersion();
+        rejectsInvalidLength();
+        checksDataChecksum();
+        encodesControlFrames();
+        System.out.println("FrameDecoderTest passed");
+    }
+
+    private static void decodesFrameSplitIntoSingleBytes() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer frame = Frame.encodeText("hello, \u043c\u0438\u0440", BufferPool.SHARED);
+        Frame decoded = null;
+        while (frame.hasRemaining()) {
+            assertTrue("frame decoded before its last byte", decoded == null);
+            decoder.writableBuffer().put(frame.get());
+            decoded = decoder.next();
+        }
+        assertTrue("frame is not decoded", decoded != null);
+        assertEquals(Frame.TEXT, decoded.getType());
+        assertEquals("hello, \u043c\u0438\u0440", decoded.getText());
+        assertTrue("no more frames", decoder.next() == null);
+        BufferPool.SHARED.release(frame);
+        decoder.release();
+    }
+
+    private static void decodesCoalescedFrames() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer frame = Frame.encodeText("message " + i, BufferPool.SHARED);
+            decoder.writableBuffer().put(frame);
+            BufferPool.SHARED.release(frame);
+        }
+        Frame frame;
+        while ((frame = decoder.next()) != null) {
+            texts.add(frame.getText());
+        }
+        assertEquals(List.of("message 0", "message 1", "message 2"), texts);
+        decoder.release();
+    }
+
+    private static void growsForFrameLargerThanBuffer() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] payload = new byte[100_000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        ByteBuffer frame = dataFrame(payload);
+        Frame decoded = null;
+        while (frame.hasRemaining() && decoded == null) {
+            ByteBuffer writable = decoder.writableBuffer();
+            int length = Math.min(writable.remaining(), frame.remaining());
+            writable.put(frame.slice().limit(length));
+            frame.position(frame.position() + length);
+            decoded = decoder.next();
+        }
+        assertTrue("frame is not decoded", decoded != null);
+        assertEquals(Frame.DATA, decoded.getType());
+        ByteBuffer data = decoded.getCheckedData();
+        assertEquals(payload.length, data.remaining());
+        assertEquals(ByteBuffer.wrap(payload), data);
+        decoder.release();
+    }
+
+    private static void rejectsUnknownVersion() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.writableBuffer().put((byte) (Frame.VERSION + 1)).put(Frame.TEXT).putInt(0);
+        assertThrows(ProtocolException.class, decoder::next);
+        decoder.release();
+    }
+
+    private static void rejectsInvalidLength() {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.writableBuffer().put(Frame.VERSION).put(Frame.TEXT).putInt(-1);
+        assertThrows(ProtocolException.class, decoder::next);
+        decoder.release();
+        FrameDecoder oversized = new FrameDecoder();
+        oversized.writableBuffer().put(Frame.VERSION).put(Frame.TEXT).putInt(Frame.MAX_PAYLOAD_SIZE + 1);
+        assertThrows(ProtocolException.class, oversized::next);
+        oversized.release();
+    }
+
+    private static void checksDataChecksum() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer frame = dataFrame("chunk".getBytes(StandardCharsets.UTF_8));
+        frame.put(frame.limit() - 1, (byte) 'K');
+        decoder.writableBuffer().put(frame);
+        Frame decoded = decoder.next();
+        assertThrows(ProtocolException.class, decoded::getCheckedData);
+        decoder.release();
+    }
+
+    private static void encodesControlFrames() throws ProtocolException {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer window = Frame.encodeControl(Frame.WINDOW, 7, 65536, BufferPool.SHARED);
+        ByteBuffer reset = Frame.encodeControl(Frame.RESET, 9, 0, BufferPool.SHARED);
+        decoder.writableBuffer().put(window).put(reset);
+        Frame decoded = decoder.next();
+        assertEquals(Frame.WINDOW, decoded.getType());
+        assertEquals(7, decoded.getStreamId());
+        assertEquals(65536, decoded.getWindowIncrement());
+        decoded = decoder.next();
+        assertEquals(Frame.RESET, decoded.getType());
+        assertEquals(9, decoded.getStreamId());
+        assertThrows(ProtocolException.class, decoded::getWindowIncrement);
+        BufferPool.SHARED.release(window);
+        BufferPool.SHARED.release(reset);
+        decoder.release();
+    }
+
+    /**
+     * @return flipped heap buffer with a {@link Frame#DATA} frame of the chunk
+     */
+    private static ByteBuffer dataFrame(byte[] chunk) {
+        CRC32C crc = new CRC32C();
+        crc.update(chunk);
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + Frame.CHECKSUM_SIZE + chunk.length);
+        Frame.writeHeader(frame, Frame.DATA, Frame.CHECKSUM_SIZE + chunk.length);
+        frame.putInt((int) crc.getValue()).put(chunk);
+        return frame.flip();
+    }
+}
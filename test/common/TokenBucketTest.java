@@ -0,0 +1,22 @@
+package common;
+
+import java.util.concurrent.TimeUnit;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertTrue;
+
+/**
+ * Bandwidth limiting: a full bucket passes one second of traffic, debt turns into waiting
+ */
+public class TokenBucketTest {
+    public static void main(String[] args) {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertEquals(0, bucket.take(1000));
+        long wait = bucket.take(500);
+        assertTrue("debt of half a second is waited for, waited " + wait,
+                wait > TimeUnit.MILLISECONDS.toNanos(400) && wait <= TimeUnit.MILLISECONDS.toNanos(500));
+        long longer = bucket.take(500);
+        assertTrue("further debt adds to the wait", longer > wait + TimeUnit.MILLISECONDS.toNanos(400));
+        System.out.println("TokenBucketTest passed");
+    }
+}
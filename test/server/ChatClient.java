@@ -0,0 +1,112 @@
+package server;
+
+import common.Frame;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client speaking raw frames, for tests and benchmarks against a running server
+ */
+class ChatClient implements AutoCloseable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    /**
+     * type of the last frame read by {@link #read()}
+     */
+    private byte type;
+
+    /**
+     * @param timeoutMillis how long a read may wait
+     * @throws IOException if the server is not reachable
+     */
+    ChatClient(int timeoutMillis) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", Server.PORT), timeoutMillis);
+        socket.setSoTimeout(timeoutMillis);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * @return complete text frame
+     */
+    static byte[] text(String text) {
+        return frame(Frame.TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] frame(byte type, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + payload.length);
+        frame.put(Frame.VERSION).put(type).putInt(payload.length).put(payload);
+        return frame.array();
+    }
+
+    /**
+     * writes bytes as they are, e.g. several frames at once or a part of one
+     */
+    void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+
+    void send(String text) throws IOException {
+        write(text(text));
+    }
+
+    /**
+     * @return payload of the next frame, its type is {@link #type()}
+     * @throws EOFException if the server closed the connection
+     */
+    byte[] read() throws IOException {
+        in.readByte();
+        type = in.readByte();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    byte type() {
+        return type;
+    }
+
+    /**
+     * skips frames until a text containing part
+     *
+     * @return the text
+     * @throws SocketTimeoutException if the text does not come in time
+     */
+    String expect(String part) throws IOException {
+        while (true) {
+            byte[] payload = read();
+            if (type == Frame.TEXT) {
+                String text = new String(payload, StandardCharsets.UTF_8);
+                if (text.contains(part)) {
+                    return text;
+                }
+            }
+        }
+    }
+
+    /**
+     * skips frames until one of the type
+     */
+    void expect(byte frameType) throws IOException {
+        do {
+            read();
+        } while (type != frameType);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
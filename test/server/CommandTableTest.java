@@ -0,0 +1,40 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertThrows;
+
+/**
+ * Byte-level command lookup
+ */
+public class CommandTableTest {
+    public static void main(String[] args) {
+        CommandTable<String> table = new CommandTable<>();
+        table.register("/history", "history");
+        table.register("/help", "help");
+        table.register("/file", "file");
+        assertEquals("history", table.lookup(payload("/history 10")));
+        assertEquals("history", table.lookup(payload("/history")));
+        assertEquals("help", table.lookup(payload("/help")));
+        assertEquals("file", table.lookup(payload("/file \"a\"bob 1\n")));
+        assertEquals(null, table.lookup(payload("/historyX")));
+        assertEquals(null, table.lookup(payload("/his")));
+        assertEquals(null, table.lookup(payload("history")));
+        assertEquals(null, table.lookup(payload("/")));
+        assertEquals(null, table.lookup(payload("/unknown")));
+        ByteBuffer offset = ByteBuffer.wrap("xx/help".getBytes(StandardCharsets.US_ASCII));
+        offset.position(2);
+        assertEquals("help", table.lookup(offset));
+        assertEquals(2, offset.position());
+        assertThrows(IllegalArgumentException.class, () -> table.register("login", "login"));
+        assertThrows(IllegalArgumentException.class, () -> table.register("/help", "other help"));
+        assertEquals("help", table.lookup(payload("/help")));
+        System.out.println("CommandTableTest passed");
+    }
+
+    private static ByteBuffer payload(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
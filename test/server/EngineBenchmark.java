@@ -0,0 +1,118 @@
+package server;
+
+import common.Frame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load benchmark of both engines: clients in one room send timestamped messages, every client reads
+ * the broadcasts of the others. Prints delivered messages per second and the latency percentiles.
+ * Arguments: clients, messages per client, pause between messages of a client in ms (50 200 20 by default),
+ * a pause of 0 measures the saturated server
+ */
+public class EngineBenchmark {
+    private static final String PREFIX = "bench ";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long pause = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        for (String engine : new String[]{"selector", "blocking"}) {
+            try (ServerProcess server = new ServerProcess("server.engine=" + engine)) {
+                run(engine, clients, messages, pause);
+                if (!server.isAlive()) {
+                    System.out.println(engine + ": server exited during the run");
+                }
+            }
+        }
+    }
+
+    private static void run(String engine, int clientCount, int messages, long pause) throws Exception {
+        List<ChatClient> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            ChatClient client = new ChatClient(10_000);
+            client.send("/login user" + i);
+            client.expect("user" + i + " connected");
+            clients.add(client);
+        }
+        long expected = (long) clientCount * (clientCount - 1) * messages;
+        long[][] latencies = new long[clientCount][];
+        CountDownLatch done = new CountDownLatch(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            int index = i;
+            Thread reader = new Thread(() -> {
+                latencies[index] = read(clients.get(index), (clientCount - 1) * messages);
+                done.countDown();
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<>();
+        for (ChatClient client : clients) {
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        client.send(PREFIX + System.nanoTime());
+                        Thread.sleep(pause);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        done.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long[] all = Arrays.stream(latencies).filter(l -> l != null).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%s: %d clients, %d of %d messages delivered, %.0f messages/s, latency p50 %.2f ms, "
+                        + "p99 %.2f ms, max %.2f ms%n", engine, clientCount, all.length, expected,
+                all.length * 1e9 / elapsed, percentile(all, 0.5), percentile(all, 0.99), percentile(all, 1));
+        for (ChatClient client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * @return latencies of the broadcasts received until the count or a read timeout
+     */
+    private static long[] read(ChatClient client, int count) {
+        long[] latencies = new long[count];
+        int received = 0;
+        try {
+            while (received < count) {
+                byte[] payload = client.read();
+                long now = System.nanoTime();
+                if (client.type() != Frame.TEXT) {
+                    continue;
+                }
+                String text = new String(payload, StandardCharsets.UTF_8).trim();
+                int at = text.indexOf(PREFIX);
+                if (at >= 0) {
+                    latencies[received++] = now - Long.parseLong(text.substring(at + PREFIX.length()));
+                }
+            }
+        } catch (IOException e) {
+            // timed out: messages were dropped by the slow consumer policy
+        }
+        return Arrays.copyOf(latencies, received);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import common.Frame;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static common.Assert.assertThrows;
+import static common.Assert.assertTrue;
+
+/**
+ * The same chat session against both engines: broadcast, frames split and coalesced by TCP, history,
+ * pings answered by the client and disconnection of a silent one
+ */
+public class EngineTest {
+    public static void main(String[] args) throws IOException {
+        for (String engine : new String[]{"selector", "blocking"}) {
+            try (ServerProcess server = new ServerProcess("server.engine=" + engine,
+                    "server.pingInterval=300", "server.idleTimeout=1500")) {
+                chat();
+                pings();
+                assertTrue("server keeps running after the session", server.isAlive());
+            }
+            System.out.println(engine + " engine passed");
+        }
+        System.out.println("EngineTest passed");
+    }
+
+    private static void chat() throws IOException {
+        try (ChatClient alice = new ChatClient(5000); ChatClient bob = new ChatClient(5000)) {
+            alice.send("/login alice");
+            alice.expect("alice connected");
+            bob.send("/login bob");
+            bob.expect("bob connected");
+
+            alice.send("hello");
+            assertTrue("broadcast names the author", bob.expect("hello").contains("alice"));
+
+            byte[] one = ChatClient.text("one");
+            byte[] two = ChatClient.text("two");
+            byte[] coalesced = Arrays.copyOf(one, one.length + two.length);
+            System.arraycopy(two, 0, coalesced, one.length, two.length);
+            alice.write(coalesced);
+            bob.expect("one");
+            bob.expect("two");
+
+            byte[] three = ChatClient.text("three");
+            alice.write(Arrays.copyOfRange(three, 0, 3));
+            ServerProcess.sleep(100);
+            alice.write(Arrays.copyOfRange(three, 3, three.length));
+            bob.expect("three");
+
+            bob.send("/history");
+            bob.expect("hello");
+            bob.expect("one");
+            bob.expect("two");
+            bob.expect("three");
+        }
+    }
+
+    private static void pings() throws IOException {
+        try (ChatClient carol = new ChatClient(5000); ChatClient dave = new ChatClient(5000)) {
+            carol.send("/login carol");
+            carol.expect("carol connected");
+            dave.send("/login dave");
+            dave.expect("dave connected");
+            long end = System.currentTimeMillis() + 2500;
+            while (System.currentTimeMillis() < end) {
+                carol.expect(Frame.PING);
+                carol.write(ChatClient.frame(Frame.PONG, new byte[0]));
+            }
+            carol.send("/online");
+            carol.expect("carol");
+            assertThrows(EOFException.class, () -> {
+                while (true) {
+                    dave.read();
+                }
+            });
+        }
+    }
+}
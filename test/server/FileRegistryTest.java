@@ -0,0 +1,56 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertThrows;
+import static common.Assert.assertTrue;
+
+/**
+ * Files survive reopening the index, names too long for it are refused, unreadable records are cut off
+ */
+public class FileRegistryTest {
+    private static final String HASH = "00".repeat(32);
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("files", ".idx");
+        FileRegistry registry = new FileRegistry(path);
+        int first = registry.register("a.txt", "alice", "general", 10, HASH).id;
+        int second = registry.register("b.txt", "bob", "room", 20, HASH).id;
+        registry.remove(first);
+        assertThrows(IOException.class, () -> registry.register("n".repeat(70_000), "alice", "general", 1, HASH));
+
+        FileRegistry reopened = new FileRegistry(path);
+        assertTrue("removed file stays removed", reopened.get(first) == null);
+        assertEquals("bob_b.txt", reopened.get(second).getDownloadName());
+        assertEquals("room", reopened.get(second).room);
+        long validLength = Files.size(path);
+
+        appendUnreadableRecord(path);
+        FileRegistry recovered = new FileRegistry(path);
+        assertEquals(1, recovered.records().size());
+        assertEquals(validLength, Files.size(path));
+        assertTrue("ids continue after the last file", recovered.register("c.txt", "carol", "general", 1, HASH).id > second);
+        System.out.println("FileRegistryTest passed");
+    }
+
+    /**
+     * appends a record with a valid checksum whose name length points past its end
+     */
+    private static void appendUnreadableRecord(Path path) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(4 + 8 + 8 + 32 + 2);
+        body.putInt(7).putLong(1).putLong(0).put(new byte[32]).putShort((short) 0xFFFF).flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(body.remaining()).putInt((int) crc.getValue()).flip();
+        try (FileChannel index = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            index.write(new ByteBuffer[]{header, body});
+        }
+    }
+}
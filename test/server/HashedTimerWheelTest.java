@@ -0,0 +1,106 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertTrue;
+
+/**
+ * Timer wheel driven with explicit times, no sleeping
+ */
+public class HashedTimerWheelTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    public static void main(String[] args) {
+        runsTaskAfterDeadline();
+        runsTaskAfterSeveralRounds();
+        lateAdvanceDoesNotFireEarly();
+        skipsCancelledTask();
+        failingTaskDoesNotStopOthers();
+        System.out.println("HashedTimerWheelTest passed");
+    }
+
+    private static void runsTaskAfterDeadline() {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 8);
+        List<String> fired = new ArrayList<>();
+        Runnable late = () -> fired.add("late");
+        Runnable early = () -> fired.add("early");
+        long start = System.nanoTime();
+        wheel.schedule(late, 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(early, 20, TimeUnit.MILLISECONDS);
+        assertTrue("wheel has timers", !wheel.isEmpty());
+        wheel.advance(start);
+        assertEquals(List.of(), fired);
+        wheel.advance(start + 4 * TICK);
+        assertEquals(List.of("early"), fired);
+        wheel.advance(start + 7 * TICK);
+        assertEquals(List.of("early", "late"), fired);
+        assertTrue("wheel is empty after every timer fired", wheel.isEmpty());
+    }
+
+    /**
+     * a delay longer than the wheel span waits for its round
+     */
+    private static void runsTaskAfterSeveralRounds() {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 4);
+        int[] fired = new int[1];
+        long start = System.nanoTime();
+        wheel.schedule(() -> fired[0]++, 100, TimeUnit.MILLISECONDS);
+        wheel.advance(start);
+        for (int tick = 1; tick <= 8; tick++) {
+            wheel.advance(start + tick * TICK);
+            assertEquals(0, fired[0]);
+        }
+        wheel.advance(start + 13 * TICK);
+        assertEquals(1, fired[0]);
+    }
+
+    /**
+     * timers scheduled while the owner is behind by several ticks still wait for their deadline
+     */
+    private static void lateAdvanceDoesNotFireEarly() {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 4);
+        long start = System.nanoTime();
+        long[] now = {start};
+        long[] firedAt = {-1};
+        wheel.schedule(() -> { }, 1, TimeUnit.SECONDS);
+        wheel.advance(start);
+        long scheduled = System.nanoTime();
+        wheel.schedule(() -> firedAt[0] = now[0], 90, TimeUnit.MILLISECONDS);
+        for (int tick = 3; tick <= 12 && firedAt[0] < 0; tick++) {
+            now[0] = start + tick * TICK;
+            wheel.advance(now[0]);
+        }
+        assertTrue("timer fired", firedAt[0] >= 0);
+        assertTrue("timer fired after its deadline", firedAt[0] >= scheduled + TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    private static void skipsCancelledTask() {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 8);
+        int[] fired = new int[1];
+        long start = System.nanoTime();
+        HashedTimerWheel.Timeout timeout = wheel.schedule(() -> fired[0]++, 20, TimeUnit.MILLISECONDS);
+        wheel.advance(start);
+        timeout.cancel();
+        wheel.advance(start + 5 * TICK);
+        assertEquals(0, fired[0]);
+        assertTrue("cancelled timer is dropped", wheel.isEmpty());
+    }
+
+    private static void failingTaskDoesNotStopOthers() {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 8);
+        int[] fired = new int[1];
+        Runnable failing = () -> {
+            throw new IllegalStateException("expected by the test");
+        };
+        Runnable counting = () -> fired[0]++;
+        long start = System.nanoTime();
+        wheel.schedule(failing, 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(counting, 20, TimeUnit.MILLISECONDS);
+        wheel.advance(start);
+        wheel.advance(start + 5 * TICK);
+        assertEquals(1, fired[0]);
+    }
+}
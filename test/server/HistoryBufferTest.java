@@ -0,0 +1,85 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static common.Assert.assertEquals;
+
+/**
+ * Ring of encoded frames: pages come back as contiguous slices, old messages fall out with their ids,
+ * the ring grows on demand, gaps in recovered ids stay empty
+ */
+public class HistoryBufferTest {
+    public static void main(String[] args) {
+        List<String> evicted = new ArrayList<>();
+        HistoryBuffer.Evictions evictions = (id, frame) -> evicted.add(id + "=" + text(new ByteBuffer[]{frame}));
+
+        HistoryBuffer buffer = new HistoryBuffer(3, 0);
+        for (int i = 0; i < 3; i++) {
+            buffer.append(frame("m" + i), evictions);
+        }
+        assertEquals(List.of(), evicted);
+        assertEquals(3, buffer.nextId());
+        assertEquals("m0m1m2", text(buffer.last(10)));
+        assertEquals(1, buffer.last(10).length);
+        assertEquals("m1m2", text(buffer.last(2)));
+        buffer.append(frame("m3"), evictions);
+        assertEquals(List.of("0=m0"), evicted);
+        assertEquals("m1m2m3", text(buffer.last(10)));
+        assertEquals("m3", text(buffer.since(2, 10)));
+        assertEquals("m1m2", text(buffer.since(-1, 2)));
+        assertEquals("m1m3", text(buffer.get(new long[]{0, 1, 3})));
+        assertEquals(0, buffer.since(3, 10).length);
+
+        evicted.clear();
+        HistoryBuffer growing = new HistoryBuffer(40, 100);
+        assertEquals(0, growing.last(10).length);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            growing.append(frame("g" + i + ";"), evictions);
+            if (i >= 10) {
+                expected.append("g").append(i).append(";");
+            }
+        }
+        assertEquals(List.of("100=g0;", "101=g1;", "102=g2;", "103=g3;", "104=g4;", "105=g5;", "106=g6;",
+                "107=g7;", "108=g8;", "109=g9;"), evicted);
+        assertEquals(150, growing.nextId());
+        assertEquals(expected.toString(), text(growing.last(100)));
+        assertEquals("g48;g49;", text(growing.since(147, 10)));
+
+        evicted.clear();
+        HistoryBuffer gap = new HistoryBuffer(4, 0);
+        for (int i = 0; i < 4; i++) {
+            gap.restore(i, frame("m" + i), evictions);
+        }
+        gap.restore(6, frame("m6"), evictions);
+        assertEquals(List.of("0=m0", "1=m1", "2=m2"), evicted);
+        assertEquals("m3m6", text(gap.last(10)));
+        assertEquals("", text(gap.since(3, 2)));
+        assertEquals(7, gap.nextId());
+
+        evicted.clear();
+        HistoryBuffer wide = new HistoryBuffer(100, 0);
+        wide.restore(0, frame("r0;"), evictions);
+        wide.restore(1, frame("r1;"), evictions);
+        wide.restore(40, frame("r40;"), evictions);
+        assertEquals(List.of(), evicted);
+        assertEquals("r0;r1;", text(wide.since(-1, 2)));
+        assertEquals("r0;r1;r40;", text(wide.last(100)));
+        System.out.println("HistoryBufferTest passed");
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer[] slices) {
+        StringBuilder text = new StringBuilder();
+        for (ByteBuffer slice : slices) {
+            text.append(StandardCharsets.UTF_8.decode(slice.duplicate()));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package server;
+
+import common.BufferPool;
+import common.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static common.Assert.assertEquals;
+import static common.Assert.assertThrows;
+import static common.Assert.assertTrue;
+
+/**
+ * Records survive reopening the log and come back with the current protocol version, recovery stops
+ * at the first record it cannot parse, old segments are deleted
+ */
+public class HistoryLogTest {
+    private static final Path DIRECTORY;
+
+    static {
+        try {
+            DIRECTORY = Files.createTempDirectory("history-test");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        System.setProperty("server.history.dir", DIRECTORY.toString());
+        System.setProperty("server.history.segmentSize", "65536");
+        System.setProperty("server.history.fsync", "OS");
+        System.setProperty("server.history.retention", "2");
+    }
+
+    public static void main(String[] args) throws IOException {
+        HistoryLog log = new HistoryLog();
+        log.recover((room, id, frame) -> {
+        });
+        log.append("general", 0, Frame.encodeText("m0", BufferPool.SHARED));
+        log.append("room", 0, Frame.encodeText("m1", BufferPool.SHARED));
+        log.append("general", 1, Frame.encodeText("m2", BufferPool.SHARED));
+        assertEquals("general#0:m0 room#0:m1 general#1:m2", recover());
+
+        assertThrows(IOException.class, () -> log.append("r".repeat(70_000), 0, Frame.encodeText("m", BufferPool.SHARED)));
+
+        corruptRoomLength(recordOffset(1));
+        assertEquals("general#0:m0", recover());
+
+        HistoryLog rolled = new HistoryLog();
+        rolled.recover((room, id, frame) -> {
+        });
+        String text = "x".repeat(10_000);
+        for (int i = 1; i <= 30; i++) {
+            rolled.append("general", i, Frame.encodeText(i + text, BufferPool.SHARED));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (segmentFiles() > 2 && System.currentTimeMillis() < deadline) {
+            sleep();
+        }
+        assertEquals(2L, segmentFiles());
+        String[] kept = recover().split(" ");
+        assertTrue("oldest records are gone", !kept[0].startsWith("general#0:"));
+        assertTrue("latest record is kept", kept[kept.length - 1].startsWith("general#30:30x"));
+        System.out.println("HistoryLogTest passed");
+    }
+
+    private static String recover() throws IOException {
+        List<String> records = new ArrayList<>();
+        new HistoryLog().recover((room, id, frame) -> {
+            assertEquals(Frame.VERSION, frame.get(frame.position()));
+            records.add(room + "#" + id + ":" + StandardCharsets.UTF_8.decode(frame.duplicate().position(Frame.HEADER_SIZE)));
+        });
+        return String.join(" ", records);
+    }
+
+    private static long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(DIRECTORY)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int recordOffset(int record) throws IOException {
+        try (FileChannel index = FileChannel.open(DIRECTORY.resolve("00000000.idx"))) {
+            ByteBuffer end = ByteBuffer.allocate(4);
+            index.read(end, (record - 1) * 4L);
+            return end.getInt(0);
+        }
+    }
+
+    /**
+     * makes the room name longer than the record, keeping the checksum valid
+     */
+    private static void corruptRoomLength(int offset) throws IOException {
+        try (FileChannel data = FileChannel.open(DIRECTORY.resolve("00000000.log"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            data.read(header, offset);
+            ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+            data.read(body, offset + 8);
+            body.putShort(0, (short) 0xFFFF);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate().clear());
+            header.putInt(4, (int) crc.getValue());
+            data.write(header.clear(), offset);
+            data.write(body.clear(), offset + 8);
+        }
+    }
+}
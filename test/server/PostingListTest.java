@@ -0,0 +1,86 @@
+package server;
+
+import static common.Assert.assertArrayEquals;
+import static common.Assert.assertTrue;
+
+/**
+ * Varint delta encoding of posting lists
+ */
+public class PostingListTest {
+    public static void main(String[] args) {
+        keepsIdsInOrder();
+        encodesLargeGaps();
+        removesFromHead();
+        staysCorrectAcrossCompaction();
+        copiesIndependently();
+        System.out.println("PostingListTest passed");
+    }
+
+    private static void keepsIdsInOrder() {
+        PostingList list = new PostingList();
+        assertTrue("new list is empty", list.isEmpty());
+        for (long id : new long[]{3, 4, 10, 11, 200}) {
+            list.add(id);
+        }
+        assertArrayEquals(new long[]{3, 4, 10, 11, 200}, list.toArray(Long.MAX_VALUE));
+        assertArrayEquals(new long[]{3, 4, 10}, list.toArray(11));
+        assertArrayEquals(new long[0], list.toArray(3));
+    }
+
+    private static void encodesLargeGaps() {
+        PostingList list = new PostingList();
+        long[] ids = {0, 127, 128, 16_511, 2_000_000, 1L << 40, (1L << 62) + 5};
+        for (long id : ids) {
+            list.add(id);
+        }
+        assertArrayEquals(ids, list.toArray(Long.MAX_VALUE));
+    }
+
+    private static void removesFromHead() {
+        PostingList list = new PostingList();
+        list.add(5);
+        list.add(300);
+        list.add(301);
+        list.removeFirst(4);
+        assertArrayEquals(new long[]{5, 300, 301}, list.toArray(Long.MAX_VALUE));
+        list.removeFirst(5);
+        assertArrayEquals(new long[]{300, 301}, list.toArray(Long.MAX_VALUE));
+        list.removeFirst(300);
+        list.removeFirst(301);
+        assertTrue("list is empty after removing every id", list.isEmpty());
+        list.add(1000);
+        assertArrayEquals(new long[]{1000}, list.toArray(Long.MAX_VALUE));
+    }
+
+    /**
+     * a sliding window of ids, as a term sees in a bounded history, makes the list compact its buffer
+     */
+    private static void staysCorrectAcrossCompaction() {
+        PostingList list = new PostingList();
+        int window = 50;
+        for (long id = 0; id < 10_000; id++) {
+            list.add(id * 3);
+            if (id >= window) {
+                list.removeFirst((id - window) * 3);
+            }
+        }
+        long[] expected = new long[window];
+        for (int i = 0; i < window; i++) {
+            expected[i] = (10_000 - window + i) * 3L;
+        }
+        assertArrayEquals(expected, list.toArray(Long.MAX_VALUE));
+    }
+
+    private static void copiesIndependently() {
+        PostingList list = new PostingList();
+        list.add(1);
+        list.add(2);
+        list.add(3);
+        list.removeFirst(1);
+        PostingList copy = list.copy();
+        list.add(4);
+        list.removeFirst(2);
+        assertArrayEquals(new long[]{2, 3}, copy.toArray(Long.MAX_VALUE));
+        assertArrayEquals(new long[]{3, 4}, list.toArray(Long.MAX_VALUE));
+    }
+}
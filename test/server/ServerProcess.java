@@ -0,0 +1,96 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Server started in a JVM of its own with a fresh working directory, so engines run side by side with
+ * the classes under test and leave no files behind
+ */
+class ServerProcess implements AutoCloseable {
+    private final Process process;
+    private final Path directory;
+
+    /**
+     * starts the server and waits until it accepts connections
+     *
+     * @param properties -D options of the server, e.g. server.engine=blocking
+     * @throws IOException if the server does not start
+     */
+    ServerProcess(String... properties) throws IOException {
+        directory = Files.createTempDirectory("server-test");
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add(Server.class.getName());
+        process = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.log").toFile())
+                .start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", Server.PORT), 1000);
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    close();
+                    throw new IOException("server did not start, see " + directory.resolve("server.log"), e);
+                }
+                sleep(100);
+            }
+        }
+    }
+
+    private static String absoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * @return true while the server runs, false once it exited on its own
+     */
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * stops the server and deletes its directory
+     */
+    @Override
+    public void close() throws IOException {
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}